@@ -0,0 +1,221 @@
+package com.xiaoming.gomoku.engine;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 可选的引擎统计：落子与禁手判断的次数和耗时、禁手判断结果的分类、棋局状态的转换、搜索节点数
+ * 以-Dgomoku.metrics=true启动时开启；ENABLED为static final，关闭时各处的 if(EngineMetrics.ENABLED) 分支被JIT整体删除
+ * 计数用LongAdder，耗时用按线程分条带的LatencyHistogram，多线程同时记录不争用同一个变量
+ * 落子耗时超过-Dgomoku.metrics.slowMoveMicros(默认200)时发出JFR事件SlowMove，每次搜索结束发出Search事件
+ */
+public final class EngineMetrics {
+
+    public static final boolean ENABLED = Boolean.getBoolean("gomoku.metrics");
+    private static final long SLOW_MOVE_NANOS = Long.getLong("gomoku.metrics.slowMoveMicros", 200)*1000;
+
+    private static final int STATES = SimpleGomokuEngine.END+1;
+    /**
+     * checkRule的结果0~CONNECT_LONG
+     */
+    private static final int VERDICTS = SimpleGomokuEngine.CONNECT_LONG+1;
+
+    private static final LongAdder moves = new LongAdder();
+    private static final LongAdder checkRules = new LongAdder();
+    private static final LongAdder[] verdicts = adders(VERDICTS);
+    /**
+     * 实际落下后判负的禁手，按checkRule的结果
+     */
+    private static final LongAdder[] forbiddenMoves = adders(VERDICTS);
+    private static final LongAdder[] transitions = adders(STATES*STATES);
+    private static final LongAdder searches = new LongAdder();
+    private static final LongAdder searchNodes = new LongAdder();
+    private static final LongAdder searchNanos = new LongAdder();
+    private static final LatencyHistogram moveLatency = new LatencyHistogram();
+    private static final LatencyHistogram checkRuleLatency = new LatencyHistogram();
+
+    private EngineMetrics(){
+    }
+
+    @Name("com.xiaoming.gomoku.SlowMove")
+    @Label("Slow Move")
+    @Category("Gomoku")
+    public static final class SlowMove extends Event {
+        @Label("X")
+        int x;
+        @Label("Y")
+        int y;
+        @Label("Color")
+        int color;
+        @Label("Result Code")
+        int code;
+        @Label("Elapsed")
+        @Timespan
+        long elapsed;
+    }
+
+    @Name("com.xiaoming.gomoku.Search")
+    @Label("Search")
+    @Category("Gomoku")
+    public static final class Search extends Event {
+        @Label("Searcher")
+        String searcher;
+        @Label("Nodes")
+        long nodes;
+        @Label("Elapsed")
+        @Timespan
+        long elapsed;
+    }
+
+    /**
+     * SimpleGomokuEngine.move()一次调用
+     */
+    static void move(int x, int y, int color, int code, long nanos){
+        moves.increment();
+        moveLatency.record(nanos);
+        if(code>0 && (code&SimpleGomokuEngine.MOVE_END)!=0){
+            int verdict = code>>>SimpleGomokuEngine.MOVE_RULE_SHIFT;
+            if(verdict>0 && verdict<VERDICTS && verdict!=SimpleGomokuEngine.CONNECT5) forbiddenMoves[verdict].increment();
+        }
+        if(nanos>=SLOW_MOVE_NANOS){
+            SlowMove event = new SlowMove();
+            if(event.isEnabled()){
+                event.x = x;
+                event.y = y;
+                event.color = color;
+                event.code = code;
+                event.elapsed = nanos;
+                event.commit();
+            }
+        }
+    }
+
+    static void checkRule(int verdict, long nanos){
+        checkRules.increment();
+        checkRuleLatency.record(nanos);
+        if(verdict>=0 && verdict<VERDICTS) verdicts[verdict].increment();
+    }
+
+    static void transition(int from, int to){
+        if(from!=to) transitions[from*STATES+to].increment();
+    }
+
+    /**
+     * 一次搜索结束
+     * @param searcher 搜索的类名
+     */
+    static void search(String searcher, long nodes, long nanos){
+        searches.increment();
+        searchNodes.add(nodes);
+        searchNanos.add(nanos);
+        Search event = new Search();
+        if(event.isEnabled()){
+            event.searcher = searcher;
+            event.nodes = nodes;
+            event.elapsed = nanos;
+            event.commit();
+        }
+    }
+
+    public static long moves(){
+        return moves.sum();
+    }
+
+    public static long checkRules(){
+        return checkRules.sum();
+    }
+
+    /**
+     * checkRule()返回verdict(0、CONNECT5、FORBIDDEN_33、FORBIDDEN_44、CONNECT_LONG)的次数
+     */
+    public static long verdicts(int verdict){
+        return verdicts[verdict].sum();
+    }
+
+    /**
+     * 黑棋落下verdict类禁手判负的次数
+     */
+    public static long forbiddenMoves(int verdict){
+        return forbiddenMoves[verdict].sum();
+    }
+
+    /**
+     * 棋局状态从from转到to的次数
+     */
+    public static long transitions(int from, int to){
+        return transitions[from*STATES+to].sum();
+    }
+
+    public static long searches(){
+        return searches.sum();
+    }
+
+    public static long searchNodes(){
+        return searchNodes.sum();
+    }
+
+    /**
+     * 全部搜索合计的每秒节点数
+     */
+    public static double nodesPerSecond(){
+        long nanos = searchNanos.sum();
+        return nanos==0 ? 0 : searchNodes.sum()*1e9/nanos;
+    }
+
+    public static long moveLatency(double percentile){
+        return moveLatency.percentile(percentile);
+    }
+
+    public static long checkRuleLatency(double percentile){
+        return checkRuleLatency.percentile(percentile);
+    }
+
+    public static void reset(){
+        moves.reset();
+        checkRules.reset();
+        for(LongAdder a : verdicts) a.reset();
+        for(LongAdder a : forbiddenMoves) a.reset();
+        for(LongAdder a : transitions) a.reset();
+        searches.reset();
+        searchNodes.reset();
+        searchNanos.reset();
+        moveLatency.reset();
+        checkRuleLatency.reset();
+    }
+
+    /**
+     * 一行文本的摘要
+     */
+    public static String report(){
+        StringBuilder sb = new StringBuilder();
+        sb.append("moves=").append(moves())
+                .append(" move.p50=").append(moveLatency(0.5)).append("ns")
+                .append(" move.p99=").append(moveLatency(0.99)).append("ns")
+                .append(" checkRule=").append(checkRules())
+                .append(" checkRule.p50=").append(checkRuleLatency(0.5)).append("ns")
+                .append(" 33=").append(verdicts(SimpleGomokuEngine.FORBIDDEN_33))
+                .append(" 44=").append(verdicts(SimpleGomokuEngine.FORBIDDEN_44))
+                .append(" long=").append(verdicts(SimpleGomokuEngine.CONNECT_LONG))
+                .append(" five=").append(verdicts(SimpleGomokuEngine.CONNECT5));
+        for(int from = 0 ; from < STATES ; from ++){
+            for(int to = 0 ; to < STATES ; to ++){
+                long n = transitions(from, to);
+                if(n>0) sb.append(' ').append(from).append("->").append(to).append('=').append(n);
+            }
+        }
+        sb.append(" searches=").append(searches())
+                .append(String.format(" nodes/s=%.0f", nodesPerSecond()));
+        return sb.toString();
+    }
+
+    private static LongAdder[] adders(int n){
+        LongAdder[] a = new LongAdder[n];
+        for(int i = 0 ; i < n ; i ++) a[i] = new LongAdder();
+        return a;
+    }
+}
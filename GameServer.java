@@ -0,0 +1,173 @@
+package com.xiaoming.gomoku.engine;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 多局会话管理，一个JVM内承载大量同时进行的对局
+ * 会话按编号固定分配到一个条带(单线程执行器)，同一会话的消息按提交顺序执行，会话表只由所在条带的线程访问
+ * 所有消息异步执行，返回的CompletableFuture在条带线程中完成，不要在回调里做阻塞操作
+ */
+public class GameServer implements AutoCloseable {
+
+    /**
+     * 一条消息执行后的局面，code为move()的返回值或其它操作的成功与否(1/0)
+     */
+    public static final class Reply {
+        public final long session;
+        public final int code;
+        public final int status;
+        public final int turn;
+        public final int nextColor;
+        public final int result;
+
+        private Reply(long session, int code, SimpleGomokuEngine engine){
+            this.session = session;
+            this.code = code;
+            this.status = engine.status();
+            this.turn = engine.turn();
+            this.nextColor = engine.nextColor();
+            this.result = engine.result();
+        }
+
+        public boolean ok(){
+            return code>0;
+        }
+    }
+
+    private interface Action {
+        int apply(SimpleGomokuEngine engine);
+    }
+
+    private final ExecutorService[] stripes;
+    private final List<Map<Long, SimpleGomokuEngine>> sessions;
+    private final AtomicLong ids = new AtomicLong();
+    /**
+     * 每个条带一个直方图，避免各条带线程争用同一缓存行
+     */
+    private final LatencyHistogram[] latency;
+
+    public GameServer(int stripes){
+        if(stripes<1) throw new IllegalArgumentException("stripes "+stripes);
+        this.stripes = new ExecutorService[stripes];
+        this.sessions = new ArrayList<>(stripes);
+        this.latency = new LatencyHistogram[stripes];
+        for(int i = 0 ; i < stripes ; i ++){
+            this.sessions.add(new HashMap<>());
+            this.latency[i] = new LatencyHistogram();
+            this.stripes[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "gomoku-session");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /**
+     * 新建对局
+     * @param rule 0 无禁手 1 禁手 2 山口规则
+     */
+    public CompletableFuture<Reply> create(int rule){
+        long id = ids.incrementAndGet();
+        int stripe = stripe(id);
+        return CompletableFuture.supplyAsync(() -> {
+            SimpleGomokuEngine engine = new SimpleGomokuEngine(rule);
+            sessions.get(stripe).put(id, engine);
+            return new Reply(id, 1, engine);
+        }, stripes[stripe]);
+    }
+
+    public CompletableFuture<Reply> play(long session, int x, int y, int color){
+        return submit(session, engine -> engine.move(x, y, color));
+    }
+
+    public CompletableFuture<Reply> pass(long session){
+        return submit(session, engine -> engine.pass() ? 1 : 0);
+    }
+
+    public CompletableFuture<Reply> ann(long session, int n){
+        return submit(session, engine -> engine.ann(n) ? 1 : 0);
+    }
+
+    public CompletableFuture<Reply> swap(long session, boolean swap){
+        return submit(session, engine -> engine.swap(swap) ? 1 : 0);
+    }
+
+    public CompletableFuture<Reply> dot(long session, int[] dots){
+        int[] copy = dots.clone();
+        return submit(session, engine -> engine.dot(copy) ? 1 : 0);
+    }
+
+    public CompletableFuture<Reply> choice(long session, int idx){
+        return submit(session, engine -> engine.choice(idx) ? 1 : 0);
+    }
+
+    /**
+     * @param side 认输的一方(0/1)
+     */
+    public CompletableFuture<Reply> resign(long session, int side){
+        return submit(session, engine -> engine.resign(side) ? 1 : 0);
+    }
+
+    /**
+     * 关闭会话，返回关闭前的局面
+     */
+    public CompletableFuture<Reply> remove(long session){
+        int stripe = stripe(session);
+        return CompletableFuture.supplyAsync(() -> {
+            SimpleGomokuEngine engine = sessions.get(stripe).remove(session);
+            if(engine==null) throw new IllegalArgumentException("session "+session);
+            return new Reply(session, 1, engine);
+        }, stripes[stripe]);
+    }
+
+    /**
+     * 从提交到执行完成的延迟(纳秒)，包括排队时间，不含create与remove
+     * @param p 0到1之间的分位，如0.5 0.99
+     */
+    public long latency(double p){
+        LatencyHistogram all = new LatencyHistogram();
+        for(LatencyHistogram h : latency) all.add(h);
+        return all.percentile(p);
+    }
+
+    /**
+     * 已记录的消息数
+     */
+    public long messages(){
+        long total = 0;
+        for(LatencyHistogram h : latency) total += h.count();
+        return total;
+    }
+
+    public void resetLatency(){
+        for(LatencyHistogram h : latency) h.reset();
+    }
+
+    @Override
+    public void close(){
+        for(ExecutorService stripe : stripes) stripe.shutdownNow();
+    }
+
+    private CompletableFuture<Reply> submit(long session, Action action){
+        int stripe = stripe(session);
+        long start = System.nanoTime();
+        return CompletableFuture.supplyAsync(() -> {
+            SimpleGomokuEngine engine = sessions.get(stripe).get(session);
+            if(engine==null) throw new IllegalArgumentException("session "+session);
+            Reply reply = new Reply(session, action.apply(engine), engine);
+            latency[stripe].record(System.nanoTime()-start);
+            return reply;
+        }, stripes[stripe]);
+    }
+
+    private int stripe(long session){
+        return (int) Long.remainderUnsigned(session, stripes.length);
+    }
+}
@@ -0,0 +1,99 @@
+package com.xiaoming.gomoku.engine;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * GameServer的本机压测：大量会话同时随机落子，条带数从1翻倍到CPU核数，输出每秒消息数与p50/p99延迟
+ * 用法: GameServerLoad [会话数] [每轮秒数] [规则]
+ */
+public class GameServerLoad {
+
+    private static final int N = SimpleGomokuEngine.boardSize;
+
+    /**
+     * 一个模拟客户端，同一时刻只有一条消息在途，对局结束后关闭会话再开新局
+     */
+    private static final class Client {
+        private final GameServer server;
+        private final int rule;
+        private final AtomicBoolean running;
+        private final CountDownLatch done;
+        private final boolean[] taken = new boolean[N*N];
+        private int free = N*N;
+
+        Client(GameServer server, int rule, AtomicBoolean running, CountDownLatch done){
+            this.server = server;
+            this.rule = rule;
+            this.running = running;
+            this.done = done;
+        }
+
+        void start(){
+            server.create(rule).thenAccept(this::next);
+        }
+
+        private void next(GameServer.Reply reply){
+            if(!running.get()){
+                server.remove(reply.session).whenComplete((r, e) -> done.countDown());
+                return;
+            }
+            if(reply.status==SimpleGomokuEngine.END || free==0){
+                server.remove(reply.session).thenAccept(r -> {
+                    Arrays.fill(taken, false);
+                    free = N*N;
+                    start();
+                });
+                return;
+            }
+            if(reply.status!=SimpleGomokuEngine.MOVE){
+                //山口规则的开局阶段直接认输，压测只关心落子
+                server.resign(reply.session, reply.turn).thenAccept(this::next);
+                return;
+            }
+            int k = ThreadLocalRandom.current().nextInt(free);
+            int pos = 0;
+            for( ; ; pos ++){
+                if(!taken[pos] && k--==0) break;
+            }
+            taken[pos] = true;
+            free--;
+            server.play(reply.session, pos%N, pos/N, reply.nextColor).thenAccept(this::next);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int sessions = args.length>0 ? Integer.parseInt(args[0]) : 20000;
+        long seconds = args.length>1 ? Long.parseLong(args[1]) : 5;
+        int rule = args.length>2 ? Integer.parseInt(args[2]) : 1;
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println("sessions="+sessions+" seconds="+seconds+" rule="+rule+" cores="+cores);
+        for(int stripes = 1 ; ; stripes = Math.min(stripes*2, cores)){
+            run(stripes, sessions, seconds, rule);
+            if(stripes==cores) break;
+        }
+    }
+
+    private static void run(int stripes, int sessions, long seconds, int rule) throws InterruptedException {
+        try(GameServer server = new GameServer(stripes)){
+            AtomicBoolean running = new AtomicBoolean(true);
+            CountDownLatch done = new CountDownLatch(sessions);
+            for(int i = 0 ; i < sessions ; i ++){
+                new Client(server, rule, running, done).start();
+            }
+            //预热后清掉延迟记录再计时
+            Thread.sleep(1000);
+            server.resetLatency();
+            long start = System.nanoTime();
+            Thread.sleep(seconds*1000);
+            long messages = server.messages();
+            double elapsed = (System.nanoTime()-start)/1e9;
+            running.set(false);
+            done.await();
+            System.out.printf("stripes=%d messages/s=%.0f p50=%dus p99=%dus%n",
+                    stripes, messages/elapsed, server.latency(0.5)/1000, server.latency(0.99)/1000);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.xiaoming.gomoku.engine;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * 只追加的棋谱库，棋谱(SimpleGomokuEngine.record())按写入顺序编号
+ * 目录下两个文件：games.dat 顺序存放棋谱，games.idx 每局一个long(数据偏移<<16 | 长度)
+ * 读取时映射文件，record()返回映射区域的只读切片，不复制到堆上；文件按SEGMENT分段映射，一局棋谱不跨段
+ * 读取不加锁：已映射的段放在不可变的View中，只有读到View之外的新棋谱时才加锁重新映射，多线程可以同时读
+ * 先写数据后写索引，中途退出时索引之外的数据在下次打开时截掉
+ */
+public class GameStore implements Closeable {
+
+    private static final int SEGMENT = 1<<30;
+    private static final int MAX_RECORD = 0xFFFF;
+    private static final int LENGTH_BITS = 16;
+
+    private final FileChannel data;
+    private final FileChannel index;
+    private final ByteBuffer entry = ByteBuffer.allocate(Long.BYTES);
+    private long count;
+    private long dataSize;
+    private volatile View view = View.EMPTY;
+
+    /**
+     * 读取用的快照：前count局的索引与数据都在已映射的段内
+     */
+    private static final class View {
+        static final View EMPTY = new View(0, new MappedByteBuffer[0], new MappedByteBuffer[0]);
+
+        final long count;
+        final MappedByteBuffer[] dataMaps;
+        final MappedByteBuffer[] indexMaps;
+
+        View(long count, MappedByteBuffer[] dataMaps, MappedByteBuffer[] indexMaps){
+            this.count = count;
+            this.dataMaps = dataMaps;
+            this.indexMaps = indexMaps;
+        }
+    }
+
+    private GameStore(FileChannel data, FileChannel index) throws IOException {
+        this.data = data;
+        this.index = index;
+        count = index.size()/Long.BYTES;
+        if(count>0){
+            ByteBuffer last = ByteBuffer.allocate(Long.BYTES);
+            for(long p = (count-1)*Long.BYTES ; last.hasRemaining() ; ){
+                int n = index.read(last, p);
+                if(n<0) throw new IOException("truncated index");
+                p += n;
+            }
+            long e = last.getLong(0);
+            dataSize = (e>>>LENGTH_BITS) + (e & MAX_RECORD);
+        }
+        //丢掉上次中途退出留下的不完整部分
+        index.truncate(count*Long.BYTES);
+        data.truncate(dataSize);
+    }
+
+    /**
+     * 打开目录下的棋谱库，不存在时创建
+     */
+    public static GameStore open(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        FileChannel data = FileChannel.open(dir.resolve("games.dat"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            return new GameStore(data, FileChannel.open(dir.resolve("games.idx"),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        } catch (IOException e) {
+            data.close();
+            throw e;
+        }
+    }
+
+    public synchronized long count(){
+        return count;
+    }
+
+    public long append(SimpleGomokuEngine engine) throws IOException {
+        return append(engine.record());
+    }
+
+    /**
+     * 追加一局棋谱
+     * @return 棋谱编号
+     */
+    public synchronized long append(byte[] record) throws IOException {
+        if(record.length==0 || record.length>MAX_RECORD) throw new IllegalArgumentException("record length "+record.length);
+        long offset = dataSize;
+        if(offset%SEGMENT + record.length>SEGMENT){
+            //跨段时从下一段开始，中间留空
+            offset = (offset/SEGMENT+1)*SEGMENT;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(record);
+        for(long p = offset ; buf.hasRemaining() ; ){
+            p += data.write(buf, p);
+        }
+        entry.clear();
+        entry.putLong(0, offset<<LENGTH_BITS | record.length);
+        for(long p = count*Long.BYTES ; entry.hasRemaining() ; ){
+            p += index.write(entry, p);
+        }
+        dataSize = offset+record.length;
+        return count++;
+    }
+
+    /**
+     * 第id局棋谱，为映射区域的只读切片，可以交给SimpleGomokuEngine.replay(ByteBuffer)
+     * 只用绝对位置读取与slice()，不改变共用的映射，可以在多个线程同时调用
+     */
+    public ByteBuffer record(long id) throws IOException {
+        View v = view;
+        if(id<0 || id>=v.count) v = remap(id);
+        long e = v.indexMaps[(int) (id*Long.BYTES/SEGMENT)].getLong((int) (id*Long.BYTES%SEGMENT));
+        long offset = e>>>LENGTH_BITS;
+        int length = (int) (e & MAX_RECORD);
+        return v.dataMaps[(int) (offset/SEGMENT)].slice((int) (offset%SEGMENT), length);
+    }
+
+    public SimpleGomokuEngine replay(long id) throws IOException {
+        return SimpleGomokuEngine.replay(record(id));
+    }
+
+    /**
+     * 把写入的内容刷到磁盘
+     */
+    public synchronized void sync() throws IOException {
+        data.force(false);
+        index.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        view = View.EMPTY;
+        try {
+            data.close();
+        } finally {
+            index.close();
+        }
+    }
+
+    /**
+     * 按当前文件大小映射出包含第id局的新View
+     */
+    private synchronized View remap(long id) throws IOException {
+        if(id<0 || id>=count) throw new IllegalArgumentException("game id "+id);
+        View v = view;
+        if(id<v.count) return v;
+        v = new View(count, map(data, v.dataMaps, dataSize), map(index, v.indexMaps, count*Long.BYTES));
+        view = v;
+        return v;
+    }
+
+    /**
+     * 映射[0, size)的各段，旧的映射已经是整段或长度足够时继续使用
+     */
+    private static MappedByteBuffer[] map(FileChannel channel, MappedByteBuffer[] old, long size) throws IOException {
+        int segments = (int) ((size+SEGMENT-1)/SEGMENT);
+        MappedByteBuffer[] maps = Arrays.copyOf(old, Math.max(segments, old.length));
+        for(int i = 0 ; i < segments ; i ++){
+            long start = (long) i*SEGMENT;
+            long length = Math.min(SEGMENT, size-start);
+            if(maps[i]==null || maps[i].capacity()<length){
+                maps[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+            }
+        }
+        return maps;
+    }
+}
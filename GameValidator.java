@@ -0,0 +1,179 @@
+package com.xiaoming.gomoku.engine;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 批量重放GameStore中的棋谱，检查每一步是否合法，输出每局的结束状态、胜负与黑棋第一次违反禁手的类型
+ * 多个线程按BLOCK局一块领取编号，每个线程只复用一个引擎(SimpleGomokuEngine.load())，
+ * 棋谱直接从映射区域读取，结果按块交给Sink，内存占用与棋谱库大小无关
+ * 用法: GameValidator [-threads n] 棋谱库目录...，结果以CSV写到标准输出，统计写到标准错误
+ */
+public class GameValidator {
+
+    private static final int BLOCK = 4096;
+
+    /**
+     * 一局的结果，由validate()的工作线程调用，同一时刻只有一个线程调用
+     * @param status 重放结束时的棋局状态
+     * @param result 结束时的结果(0 side0胜 1 side1胜 2 和)，未结束时无意义
+     * @param violation 黑棋第一次违反禁手的类型，没有时为0
+     * @param error 棋谱不合法时的说明，合法时为null
+     */
+    public interface Sink {
+        void accept(long id, int status, int result, int violation, int moves, String error) throws IOException;
+    }
+
+    /**
+     * 统计：局数、结束的局数、不合法的局数，以及各类禁手的局数
+     */
+    public static final class Summary {
+        private final AtomicLongArray counts = new AtomicLongArray(4+SimpleGomokuEngine.CONNECT_LONG);
+        private static final int GAMES = 0;
+        private static final int FINISHED = 1;
+        private static final int ERRORS = 2;
+        private static final int VIOLATIONS = 3;
+
+        public long games(){
+            return counts.get(GAMES);
+        }
+
+        public long finished(){
+            return counts.get(FINISHED);
+        }
+
+        public long errors(){
+            return counts.get(ERRORS);
+        }
+
+        /**
+         * @param rule FORBIDDEN_33 FORBIDDEN_44 CONNECT_LONG
+         */
+        public long violations(int rule){
+            return counts.get(VIOLATIONS+rule);
+        }
+
+        @Override
+        public String toString(){
+            return "games="+games()+" finished="+finished()+" errors="+errors()
+                    +" 33="+violations(SimpleGomokuEngine.FORBIDDEN_33)
+                    +" 44="+violations(SimpleGomokuEngine.FORBIDDEN_44)
+                    +" long="+violations(SimpleGomokuEngine.CONNECT_LONG);
+        }
+    }
+
+    /**
+     * 用threads个线程重放store中全部棋谱
+     */
+    public static Summary validate(GameStore store, int threads, Sink sink) throws IOException, InterruptedException {
+        Summary summary = new Summary();
+        long count = store.count();
+        AtomicLong next = new AtomicLong();
+        List<Thread> workers = new ArrayList<>();
+        List<Throwable> failures = new ArrayList<>();
+        for(int t = 0 ; t < threads ; t ++){
+            Thread worker = new Thread(() -> {
+                try {
+                    work(store, count, next, sink, summary);
+                } catch (Throwable e) {
+                    synchronized (failures){
+                        failures.add(e);
+                    }
+                    //其余线程领不到新块，尽快结束
+                    next.set(count);
+                }
+            }, "gomoku-validate-"+t);
+            worker.start();
+            workers.add(worker);
+        }
+        for(Thread worker : workers) worker.join();
+        if(!failures.isEmpty()){
+            Throwable e = failures.get(0);
+            if(e instanceof IOException) throw (IOException) e;
+            if(e instanceof RuntimeException) throw (RuntimeException) e;
+            throw (Error) e;
+        }
+        return summary;
+    }
+
+    private static void work(GameStore store, long count, AtomicLong next, Sink sink, Summary summary) throws IOException {
+        SimpleGomokuEngine engine = new SimpleGomokuEngine(0);
+        byte[] status = new byte[BLOCK];
+        byte[] result = new byte[BLOCK];
+        byte[] violation = new byte[BLOCK];
+        short[] moves = new short[BLOCK];
+        String[] errors = new String[BLOCK];
+        long[] local = new long[4+SimpleGomokuEngine.CONNECT_LONG];
+        while (true){
+            long start = next.getAndAdd(BLOCK);
+            if(start>=count) break;
+            int n = (int) Math.min(BLOCK, count-start);
+            for(int i = 0 ; i < n ; i ++){
+                errors[i] = null;
+                try {
+                    engine.load(store.record(start+i));
+                } catch (IllegalArgumentException e) {
+                    errors[i] = e.getMessage();
+                    local[Summary.ERRORS]++;
+                }
+                //出错的棋谱也保留出错之前找到的禁手
+                violation[i] = (byte) engine.violation();
+                status[i] = (byte) engine.status();
+                result[i] = (byte) engine.result();
+                moves[i] = (short) engine.moveCount();
+                if(engine.status()==SimpleGomokuEngine.END) local[Summary.FINISHED]++;
+                if(violation[i]!=0) local[Summary.VIOLATIONS+violation[i]]++;
+            }
+            local[Summary.GAMES] += n;
+            synchronized (sink){
+                for(int i = 0 ; i < n ; i ++){
+                    sink.accept(start+i, status[i], result[i], violation[i], moves[i], errors[i]);
+                }
+            }
+        }
+        for(int i = 0 ; i < local.length ; i ++){
+            if(local[i]!=0) summary.counts.addAndGet(i, local[i]);
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<Path> stores = new ArrayList<>();
+        for(int i = 0 ; i < args.length ; i ++){
+            if(args[i].equals("-threads") && i+1<args.length) threads = Integer.parseInt(args[++i]);
+            else stores.add(Path.of(args[i]));
+        }
+        if(stores.isEmpty()){
+            System.err.println("usage: GameValidator [-threads n] store...");
+            return;
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1<<16);
+        out.write("store,id,status,result,violation,moves,error\n");
+        for(Path dir : stores){
+            String name = dir.toString();
+            if(!Files.isDirectory(dir)){
+                System.err.println(name+" is not a game store");
+                continue;
+            }
+            long begin = System.nanoTime();
+            Summary summary;
+            try(GameStore store = GameStore.open(dir)){
+                summary = validate(store, threads, (id, status, result, violation, moves, error) -> {
+                    out.write(name+","+id+","+status+","+result+","+violation+","+moves+","+(error==null ? "" : error)+"\n");
+                });
+            }
+            out.flush();
+            double seconds = (System.nanoTime()-begin)/1e9;
+            System.err.printf("%s %s games/s=%.0f%n", name, summary, summary.games()/seconds);
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package com.xiaoming.gomoku.engine;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Gomocup(Piskvork)协议前端，从标准输入读命令，向标准输出写结果
+ * 支持 START RESTART BEGIN TURN BOARD INFO TAKEBACK ABOUT END，只支持15路棋盘
+ * 按timeout_turn、timeout_match、time_left分配每一手的时间，
+ * 落子后在对手思考期间用局面副本继续搜索(后台思考)填充共用的置换表，收到下一条非INFO命令时立即停止
+ */
+public class GomocupBrain {
+
+    private static final int N = SimpleGomokuEngine.boardSize;
+    private static final int CELLS = N*N;
+    /**
+     * Gomocup INFO rule的禁手位
+     */
+    private static final int RULE_RENJU = 4;
+    /**
+     * 每一手为协议通信与线程切换预留的时间
+     */
+    private static final long RESERVE_MS = 30;
+    private static final long VCF_NODES = 20000;
+    /**
+     * VCF最多用本手时间的1/VCF_SHARE，其余留给搜索
+     */
+    private static final long VCF_SHARE = 4;
+
+    private final BufferedReader in;
+    private final PrintStream out;
+    private final boolean pondering;
+    private OpeningBook book;
+
+    private SimpleGomokuEngine engine = new SimpleGomokuEngine(0);
+    private TranspositionTable table = new TranspositionTable(1<<22);
+    private int rule;
+
+    private long timeoutTurn = 30000;
+    private long timeoutMatch;
+    private long timeLeft = Long.MAX_VALUE;
+    private long maxMemory;
+
+    private Thread ponderThread;
+    private GomokuSearch ponderSearch;
+
+    public GomocupBrain(BufferedReader in, PrintStream out, boolean pondering){
+        this.in = in;
+        this.out = out;
+        this.pondering = pondering;
+    }
+
+    /**
+     * 开局库，落子阶段先查库，查到时不再搜索
+     */
+    public void setBook(OpeningBook book){
+        this.book = book;
+    }
+
+    /**
+     * 参数: -noponder 关闭后台思考，-book 文件 使用OpeningBook.Builder.write()写出的开局库
+     */
+    public static void main(String[] args) throws IOException {
+        boolean pondering = true;
+        OpeningBook book = null;
+        for(int i = 0 ; i < args.length ; i ++){
+            if(args[i].equals("-noponder")) pondering = false;
+            if(args[i].equals("-book") && i+1<args.length) book = OpeningBook.open(Path.of(args[++i]));
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        PrintStream out = new PrintStream(System.out, true, StandardCharsets.UTF_8);
+        GomocupBrain brain = new GomocupBrain(in, out, pondering);
+        brain.setBook(book);
+        brain.run();
+    }
+
+    /**
+     * 处理命令直到END或输入结束
+     */
+    public void run() throws IOException {
+        String line;
+        while ((line = in.readLine())!=null){
+            line = line.trim();
+            if(line.isEmpty()) continue;
+            long received = System.nanoTime();
+            String[] parts = line.split("[ ,]+");
+            String command = parts[0].toUpperCase();
+            //INFO time_left等在TURN之前发送，不打断后台思考
+            if(!command.equals("INFO")) stopPondering();
+            switch (command){
+                case "START":
+                    if(parts.length<2 || !parts[1].equals(String.valueOf(N))){
+                        out.println("ERROR only "+N+"x"+N+" board is supported");
+                    }else{
+                        reset();
+                        out.println("OK");
+                    }
+                    break;
+                case "RESTART":
+                    reset();
+                    out.println("OK");
+                    break;
+                case "BEGIN":
+                    think(received);
+                    break;
+                case "TURN":
+                    turn(parts, received);
+                    break;
+                case "BOARD":
+                    board(received);
+                    break;
+                case "INFO":
+                    if(parts.length>=3) info(parts[1].toLowerCase(), parts[2]);
+                    break;
+                case "TAKEBACK":
+                    takeback(parts);
+                    break;
+                case "ABOUT":
+                    out.println("name=\"SimpleGomokuEngine\", version=\"1.0\", country=\"China\"");
+                    break;
+                case "END":
+                    return;
+                default:
+                    out.println("UNKNOWN "+line);
+            }
+        }
+        stopPondering();
+    }
+
+    private void reset(){
+        engine = new SimpleGomokuEngine(rule);
+        if(maxMemory>0){
+            //置换表每个条目16字节，最多用一半内存
+            long entries = Math.max(1<<10, Math.min(1<<24, maxMemory/2/16));
+            if(entries!=table.capacity()) table = new TranspositionTable((int) entries);
+        }
+        table.clear();
+    }
+
+    private void info(String key, String value){
+        long v;
+        try {
+            v = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return;
+        }
+        switch (key){
+            case "timeout_turn":
+                timeoutTurn = v;
+                break;
+            case "timeout_match":
+                timeoutMatch = v;
+                break;
+            case "time_left":
+                timeLeft = v;
+                break;
+            case "max_memory":
+                maxMemory = v;
+                break;
+            case "rule":
+                //规则只在新对局时生效
+                rule = (v & RULE_RENJU)!=0 ? 1 : 0;
+                break;
+        }
+    }
+
+    private void turn(String[] parts, long received){
+        int x = parts.length>2 ? parse(parts[1]) : -1;
+        int y = parts.length>2 ? parse(parts[2]) : -1;
+        if(x<0 || y<0 || x>=N || y>=N || engine.colorAt(x, y)!=SimpleGomokuEngine.EMPTY
+                || engine.move(x, y, engine.nextColor())<=0){
+            out.println("ERROR invalid move "+String.join(",", parts));
+            return;
+        }
+        think(received);
+    }
+
+    /**
+     * BOARD到DONE之间每行"x,y,field"，field 1为自己 2为对手；按黑白交替顺序重放
+     */
+    private void board(long received) throws IOException {
+        List<Integer> own = new ArrayList<>();
+        List<Integer> opponent = new ArrayList<>();
+        String line;
+        while ((line = in.readLine())!=null){
+            line = line.trim();
+            if(line.equalsIgnoreCase("DONE")) break;
+            String[] parts = line.split("[ ,]+");
+            if(parts.length<3) continue;
+            int x = parse(parts[0]);
+            int y = parse(parts[1]);
+            if(x<0 || y<0 || x>=N || y>=N) continue;
+            if(parse(parts[2])==1) own.add(y*N+x);
+            else if(parse(parts[2])==2) opponent.add(y*N+x);
+        }
+        engine = new SimpleGomokuEngine(rule);
+        //轮到自己走，两边子数相同则自己是先手
+        List<Integer> first = own.size()==opponent.size() ? own : opponent;
+        List<Integer> second = first==own ? opponent : own;
+        for(int i = 0 ; i < first.size() ; i ++){
+            if(!replay(first.get(i)) || (i<second.size() && !replay(second.get(i)))){
+                out.println("ERROR invalid board");
+                return;
+            }
+        }
+        think(received);
+    }
+
+    private boolean replay(int pos){
+        return engine.move(pos%N, pos/N, engine.nextColor())>0 && engine.status()==SimpleGomokuEngine.MOVE;
+    }
+
+    private void takeback(String[] parts){
+        int x = parts.length>2 ? parse(parts[1]) : -1;
+        int y = parts.length>2 ? parse(parts[2]) : -1;
+        out.println(engine.unplay(x, y) ? "OK" : "ERROR");
+    }
+
+    /**
+     * 为当前局面选一手并输出，随后开始后台思考
+     */
+    private void think(long received){
+        if(engine.status()!=SimpleGomokuEngine.MOVE){
+            out.println("ERROR game is over");
+            return;
+        }
+        //先定本手的时间，开局库之外的步骤都在这个时间内完成
+        long limit = budget();
+        int move = -1;
+        if(book!=null){
+            move = book.bestMove(engine);
+            if(move>=0 && !legal(move)) move = -1;
+        }
+        if(move<0 && engine.moveCount()==0){
+            move = (N/2)*N + N/2;
+        }
+        if(move<0){
+            ThreatSolver solver = new ThreatSolver(engine);
+            solver.setDeadline(received + limit*1_000_000L/VCF_SHARE);
+            int[] vcf = solver.vcf(VCF_NODES);
+            if(vcf!=null) move = vcf[0];
+        }
+        if(move<0){
+            long used = (System.nanoTime()-received)/1_000_000;
+            move = new GomokuSearch(engine, table).search(Math.max(1, limit-used));
+        }
+        if(move<0){
+            move = anyEmpty();
+        }
+        engine.move(move%N, move/N, engine.nextColor());
+        out.println(move%N+","+move/N);
+        startPondering();
+    }
+
+    /**
+     * 本手可用的毫秒数：不超过timeout_turn，限时对局中按剩余时间平均分配到估计的剩余手数
+     */
+    private long budget(){
+        long budget = timeoutTurn>0 ? timeoutTurn : 1;
+        if(timeoutMatch>0 && timeLeft!=Long.MAX_VALUE){
+            long movesToGo = Math.max(8, (CELLS-engine.moveCount())/8);
+            budget = Math.min(budget, timeLeft/movesToGo);
+        }
+        return Math.max(1, budget-Math.max(RESERVE_MS, budget/10));
+    }
+
+    /**
+     * 开局库的落点可以走：空点，禁手规则下黑棋不是禁手点
+     */
+    private boolean legal(int move){
+        int x = move%N;
+        int y = move/N;
+        if(engine.colorAt(x, y)!=SimpleGomokuEngine.EMPTY) return false;
+        if(engine.rule()==0 || engine.nextColor()!=SimpleGomokuEngine.BLACK) return true;
+        int verdict = engine.checkRule(x, y, SimpleGomokuEngine.BLACK);
+        return verdict!=SimpleGomokuEngine.FORBIDDEN_33 && verdict!=SimpleGomokuEngine.FORBIDDEN_44
+                && verdict!=SimpleGomokuEngine.CONNECT_LONG;
+    }
+
+    private int anyEmpty(){
+        for(int i = 0 ; i < CELLS ; i ++){
+            if(engine.colorAt(i%N, i/N)==SimpleGomokuEngine.EMPTY) return i;
+        }
+        return -1;
+    }
+
+    private void startPondering(){
+        if(!pondering || engine.status()!=SimpleGomokuEngine.MOVE) return;
+        //对手视角搜索，结果只留在置换表中
+        GomokuSearch search = new GomokuSearch(engine.copy(), table);
+        ponderSearch = search;
+        ponderThread = new Thread(() -> search.search(Integer.MAX_VALUE), "gomoku-ponder");
+        ponderThread.setDaemon(true);
+        ponderThread.start();
+    }
+
+    private void stopPondering(){
+        if(ponderThread==null) return;
+        //stop()可能早于search()开始时的复位，循环到线程结束
+        while (ponderThread.isAlive()){
+            ponderSearch.stop();
+            try {
+                ponderThread.join(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        ponderThread = null;
+        ponderSearch = null;
+    }
+
+    private static int parse(String s){
+        try {
+            return Integer.parseInt(s.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
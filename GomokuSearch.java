@@ -0,0 +1,441 @@
+package com.xiaoming.gomoku.engine;
+
+import java.util.Arrays;
+
+/**
+ * 基于move()/undo()的alpha-beta搜索：主要变例搜索(PVS)、迭代加深、期望窗口，
+ * 置换表、杀手着法与历史表排序
+ * 搜索遵守引擎的规则模式，禁手规则下黑棋不会走checkRule判为禁手的点
+ * 搜索结束后引擎恢复到搜索前的局面
+ */
+public class GomokuSearch {
+
+    public static final int WIN = 1_000_000;
+    private static final int INF = WIN+1;
+    /**
+     * 超过此分数视为已算出胜负
+     */
+    private static final int WIN_BOUND = WIN-1000;
+    private static final int MAX_PLY = 64;
+    private static final int ASPIRATION = 80;
+    /**
+     * 非根节点只搜排序最靠前的着法
+     */
+    private static final int BRANCH = 12;
+    /**
+     * 在MoveGenerator的分数上加的排序调整：置换表着法排在所有档次之前，杀手着法与历史表只在档内调整
+     */
+    private static final int TT_BONUS = 1<<28;
+    private static final int KILLER_BONUS = 1<<(MoveGenerator.TIER_SHIFT-1);
+    private static final int HISTORY_LIMIT = (1<<(MoveGenerator.TIER_SHIFT-3))-1;
+
+    private static final int N = SimpleGomokuEngine.boardSize;
+    private static final int CELLS = N*N;
+    private static final int FULL_ROW = (1<<N)-1;
+
+    /**
+     * 按Shape序数的权重，己方(下一手)与对方分开，己方的四下一手即可成五
+     */
+    private static final int[] ATTACK = {0, 100000, 40000, 20000, 0, 4000, 150, 0, 40, 5};
+    private static final int[] DEFENSE = {0, 100000, 20000, 1500, 0, 1200, 150, 0, 40, 5};
+    private final SimpleGomokuEngine engine;
+    private final TranspositionTable table;
+    /**
+     * 搜索中随走子与悔棋增量更新，叶节点评估只做加权求和
+     */
+    private final ShapeCounter shapes;
+    /**
+     * 同样随走子增量更新，提供已有棋子两格内的候选点
+     */
+    private final MoveGenerator generator;
+
+    private final int[][] moves = new int[MAX_PLY][CELLS];
+    private final int[][] orders = new int[MAX_PLY][CELLS];
+    /**
+     * 与moves同序的MoveGenerator原始分数(不含置换表、杀手、历史表的调整)，按档次判断是否减少深度
+     */
+    private final int[][] tiers = new int[MAX_PLY][CELLS];
+    private final int[][] killers = new int[MAX_PLY][2];
+    /**
+     * 历史表，按颜色与落点
+     */
+    private final int[] history = new int[2*CELLS];
+
+    private int maxDepth = MAX_PLY-8;
+    private int startDepth = 1;
+    /**
+     * 根节点只在这些着法中选择，null为不限
+     */
+    private int[] rootMoves;
+    private boolean sharedTable;
+    private long deadline;
+    private boolean stopped;
+    /**
+     * 其它线程请求停止
+     */
+    private volatile boolean aborted;
+    private long nodes;
+
+    private int bestMove = -1;
+    private int bestScore;
+    private int completedDepth;
+    /**
+     * 每一层迭代完成时的最佳着法与分数
+     */
+    private final int[] depthMoves = new int[MAX_PLY];
+    private final int[] depthScores = new int[MAX_PLY];
+
+    public GomokuSearch(SimpleGomokuEngine engine){
+        this(engine, new TranspositionTable(1<<20));
+    }
+
+    public GomokuSearch(SimpleGomokuEngine engine, TranspositionTable table){
+        this.engine = engine;
+        this.table = table;
+        this.shapes = new ShapeCounter(engine);
+        this.generator = new MoveGenerator(engine);
+    }
+
+    public void setMaxDepth(int maxDepth){
+        this.maxDepth = Math.max(1, Math.min(maxDepth, MAX_PLY-8));
+    }
+
+    /**
+     * 迭代加深的起始深度，并行搜索的辅助线程错开深度用
+     */
+    public void setStartDepth(int startDepth){
+        this.startDepth = Math.max(1, Math.min(startDepth, maxDepth));
+    }
+
+    /**
+     * 根节点只在给定着法(y*boardSize+x)中选择，null取消限制
+     */
+    public void setRootMoves(int[] rootMoves){
+        this.rootMoves = rootMoves;
+    }
+
+    /**
+     * 置换表由多个线程共用时设为true，调用方在各线程开始前调用一次table.newSearch()
+     */
+    public void setSharedTable(boolean sharedTable){
+        this.sharedTable = sharedTable;
+    }
+
+    /**
+     * 请求正在进行的搜索尽快结束，可以在其它线程调用
+     */
+    public void stop(){
+        aborted = true;
+    }
+
+    /**
+     * 当前局面的根节点候选着法，按排序先后写入out
+     * @return 着法数目
+     */
+    public int rootMoves(int[] out){
+        if(engine.status()!=SimpleGomokuEngine.MOVE) return 0;
+        generator.reset();
+        int count = generate(0, -1);
+        System.arraycopy(moves[0], 0, out, 0, count);
+        return count;
+    }
+
+    /**
+     * 在时间限制内搜索当前下一手
+     * @param timeMs 毫秒
+     * @return 最佳落点 y*boardSize+x，不在落子阶段或没有可走的点时返回-1
+     */
+    public int search(long timeMs){
+        bestMove = -1;
+        bestScore = 0;
+        completedDepth = 0;
+        nodes = 0;
+        stopped = false;
+        aborted = false;
+        if(engine.status()!=SimpleGomokuEngine.MOVE) return -1;
+        long start = System.nanoTime();
+        deadline = start + timeMs*1_000_000L;
+        if(!sharedTable) table.newSearch();
+        shapes.reset();
+        generator.reset();
+        for(int[] k : killers) Arrays.fill(k, -1);
+        for(int i = 0 ; i < history.length ; i ++) history[i] >>= 2;
+
+        int count = generate(0, -1);
+        if(rootMoves!=null){
+            count = filterRoot(count);
+        }else if(count==1){
+            //唯一着法(成五或挡五)
+            bestMove = moves[0][0];
+            return bestMove;
+        }
+        if(count==0) return -1;
+        bestMove = moves[0][0];
+
+        int score = 0;
+        for(int depth = startDepth ; depth <= maxDepth ; depth ++){
+            int alpha = -INF;
+            int beta = INF;
+            if(depth>2 && Math.abs(score)<WIN_BOUND){
+                alpha = score-ASPIRATION;
+                beta = score+ASPIRATION;
+            }
+            int s;
+            while (true){
+                s = root(count, depth, alpha, beta);
+                if(stopped) break;
+                //落在窗口外，放宽一侧重搜
+                if(s<=alpha) alpha = -INF;
+                else if(s>=beta) beta = INF;
+                else break;
+            }
+            if(stopped) break;
+            score = s;
+            bestScore = s;
+            bestMove = moves[0][0];
+            completedDepth = depth;
+            depthMoves[depth] = bestMove;
+            depthScores[depth] = s;
+            if(Math.abs(score)>=WIN_BOUND) break;
+            //剩余时间不足以完成下一层
+            if(System.nanoTime()-start > (deadline-start)/2) break;
+        }
+        if(EngineMetrics.ENABLED) EngineMetrics.search("GomokuSearch", nodes, System.nanoTime()-start);
+        return bestMove;
+    }
+
+    /**
+     * 上一次search()的结果
+     */
+    public int bestMove(){
+        return bestMove;
+    }
+
+    public int score(){
+        return bestScore;
+    }
+
+    public int depth(){
+        return completedDepth;
+    }
+
+    public long nodes(){
+        return nodes;
+    }
+
+    /**
+     * 上一次search()中第depth层迭代完成时的最佳着法，该层未完成时返回-1
+     */
+    public int moveAt(int depth){
+        return depth>=startDepth && depth<=completedDepth ? depthMoves[depth] : -1;
+    }
+
+    public int scoreAt(int depth){
+        return depthScores[depth];
+    }
+
+    private int filterRoot(int count){
+        int[] list = moves[0];
+        int kept = 0;
+        for(int i = 0 ; i < count ; i ++){
+            for(int m : rootMoves){
+                if(m==list[i]){
+                    list[kept++] = list[i];
+                    break;
+                }
+            }
+        }
+        return kept;
+    }
+
+    private int root(int count, int depth, int alpha, int beta){
+        int[] list = moves[0];
+        int best = -INF;
+        for(int i = 0 ; i < count ; i ++){
+            int move = list[i];
+            int s = child(move, depth, 0, alpha, beta, i==0);
+            if(stopped) return best;
+            if(s>best){
+                best = s;
+                //最佳着法移到最前，下一层迭代先搜
+                System.arraycopy(list, 0, list, 1, i);
+                list[0] = move;
+                if(s>alpha) alpha = s;
+                if(alpha>=beta) break;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * 走一步并搜索子节点，返回当前走子方视角的分数
+     */
+    private int child(int move, int depth, int ply, int alpha, int beta, boolean pv){
+        int side = engine.turn();
+        int code = engine.move(move%N, move/N, engine.nextColor());
+        if((code&SimpleGomokuEngine.MOVE_END)!=0){
+            int s = engine.result()==side ? WIN-ply-1 : -(WIN-ply-1);
+            engine.undo();
+            return s;
+        }
+        shapes.update(move%N, move/N);
+        generator.update(move%N, move/N);
+        int s;
+        if(pv){
+            s = -pvs(depth-1, ply+1, -beta, -alpha);
+        }else{
+            //零窗口试探，失败再全窗口重搜
+            s = -pvs(depth-1, ply+1, -alpha-1, -alpha);
+            if(s>alpha && s<beta && !stopped){
+                s = -pvs(depth-1, ply+1, -beta, -alpha);
+            }
+        }
+        engine.undo();
+        shapes.update(move%N, move/N);
+        generator.update(move%N, move/N);
+        return s;
+    }
+
+    private int pvs(int depth, int ply, int alpha, int beta){
+        if((++nodes & 1023)==0 && (aborted || System.nanoTime()>deadline)){
+            stopped = true;
+        }
+        if(stopped) return 0;
+        //黄金规则的开局阶段(声明、交换、打点)不在搜索范围内
+        if(engine.status()!=SimpleGomokuEngine.MOVE) return evaluate();
+        if(depth<=0 || ply>=MAX_PLY-1) return evaluate();
+
+        long key = engine.hash();
+        int ttMove = -1;
+        long entry = table.probe(key);
+        if(entry!=TranspositionTable.MISS){
+            ttMove = TranspositionTable.move(entry);
+            if(ttMove==TranspositionTable.NO_MOVE) ttMove = -1;
+            if(TranspositionTable.depth(entry)>=depth){
+                int s = fromTable(TranspositionTable.score(entry), ply);
+                int bound = TranspositionTable.bound(entry);
+                if(bound==TranspositionTable.EXACT
+                        || bound==TranspositionTable.LOWER && s>=beta
+                        || bound==TranspositionTable.UPPER && s<=alpha){
+                    return s;
+                }
+            }
+        }
+
+        int count = generate(ply, ttMove);
+        if(count==0){
+            //无子可下：棋盘已满为和棋，否则是挡不住对方的五
+            return isFull() ? 0 : -(WIN-ply-2);
+        }
+        int colorIdx = engine.nextColor()-1;
+        int[] list = moves[ply];
+        int best = -INF;
+        int bestMove = -1;
+        int origAlpha = alpha;
+        for(int i = 0 ; i < count ; i ++){
+            int move = list[i];
+            int s;
+            //靠后的非威胁着法减少一层深度，置换表着法与杀手着法不减
+            if(i>=4 && depth>=3 && tiers[ply][i]<MoveGenerator.OWN_THREAT
+                    && move!=ttMove && move!=killers[ply][0] && move!=killers[ply][1]){
+                s = child(move, depth-1, ply, alpha, alpha+1, false);
+                if(s>alpha && !stopped){
+                    s = child(move, depth, ply, alpha, beta, false);
+                }
+            }else{
+                s = child(move, depth, ply, alpha, beta, i==0);
+            }
+            if(stopped) return 0;
+            if(s>best){
+                best = s;
+                bestMove = move;
+                if(s>alpha){
+                    alpha = s;
+                    if(alpha>=beta){
+                        if(killers[ply][0]!=move){
+                            killers[ply][1] = killers[ply][0];
+                            killers[ply][0] = move;
+                        }
+                        history[colorIdx*CELLS+move] += depth*depth;
+                        break;
+                    }
+                }
+            }
+        }
+        int bound = best>=beta ? TranspositionTable.LOWER : best>origAlpha ? TranspositionTable.EXACT : TranspositionTable.UPPER;
+        table.store(key, depth, bound, toTable(best, ply), bestMove);
+        return best;
+    }
+
+    /**
+     * 着法由MoveGenerator按棋型分档排序，档内再按置换表着法、杀手着法与历史表调整先后
+     * 有成五点时只走成五，对方有成五点时只挡，非根节点只留前BRANCH个
+     * @return 着法数目，着法在moves[ply]中
+     */
+    private int generate(int ply, int ttMove){
+        int colorIdx = engine.nextColor()-1;
+        int[] list = moves[ply];
+        int[] order = orders[ply];
+        int[] tier = tiers[ply];
+        int count = generator.generate(2, true, list, order);
+        if(count==0) return 0;
+        if(order[0]>=MoveGenerator.WIN) return 1;
+        if(order[0]>=MoveGenerator.BLOCK_FIVE){
+            int blocks = 1;
+            while (blocks<count && order[blocks]>=MoveGenerator.BLOCK_FIVE) blocks++;
+            System.arraycopy(order, 0, tier, 0, blocks);
+            return blocks;
+        }
+        for(int i = 0 ; i < count ; i ++){
+            int move = list[i];
+            int raw = order[i];
+            int score = raw + Math.min(history[colorIdx*CELLS+move], HISTORY_LIMIT);
+            if(move==ttMove) score += TT_BONUS;
+            else if(move==killers[ply][0]) score += KILLER_BONUS;
+            else if(move==killers[ply][1]) score += KILLER_BONUS>>1;
+            //插入排序，降序
+            int j = i;
+            while (j>0 && order[j-1]<score){
+                order[j] = order[j-1];
+                tier[j] = tier[j-1];
+                list[j] = list[j-1];
+                j--;
+            }
+            order[j] = score;
+            tier[j] = raw;
+            list[j] = move;
+        }
+        return ply>0 ? Math.min(count, BRANCH) : count;
+    }
+
+    /**
+     * 静态评估，下一手方视角
+     */
+    private int evaluate(){
+        int own = engine.nextColor();
+        int score = shapes.score(own, ATTACK) - shapes.score(engine.oppositeColor(own), DEFENSE);
+        return Math.max(-WIN_BOUND+1, Math.min(WIN_BOUND-1, score));
+    }
+
+    private boolean isFull(){
+        for(int y = 0 ; y < N ; y ++){
+            if((engine.rowBits(y, SimpleGomokuEngine.BLACK) | engine.rowBits(y, SimpleGomokuEngine.WHITE))!=FULL_ROW) return false;
+        }
+        return true;
+    }
+
+    /**
+     * 胜负分数按距当前节点的步数存入置换表
+     */
+    private static int toTable(int score, int ply){
+        if(score>=WIN_BOUND) return score+ply;
+        if(score<=-WIN_BOUND) return score-ply;
+        return score;
+    }
+
+    private static int fromTable(int score, int ply){
+        if(score>=WIN_BOUND) return score-ply;
+        if(score<=-WIN_BOUND) return score+ply;
+        return score;
+    }
+}
@@ -0,0 +1,82 @@
+package com.xiaoming.gomoku.engine;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 纳秒延迟直方图，按2的幂分段，每段再均分8格，相对误差不超过12.5%
+ * 记录无锁，可以多线程同时记录与读取；计数按线程分到STRIPES个条带，各条带相隔一整份计数，
+ * 多线程同时记录同一格时不争用同一个变量，读取时把各条带相加
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB = 1<<SUB_BITS;
+    private static final int BUCKETS = (64-SUB_BITS)*SUB;
+    /**
+     * 不小于处理器数的2的幂，最多16
+     */
+    private static final int STRIPES = Integer.highestOneBit(Math.min(16, Runtime.getRuntime().availableProcessors()*2-1));
+
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES*BUCKETS);
+
+    public void record(long nanos){
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES-1);
+        counts.incrementAndGet(stripe*BUCKETS + bucket(Math.max(nanos, 0)));
+    }
+
+    public long count(){
+        long total = 0;
+        for(int i = 0 ; i < counts.length() ; i ++) total += counts.get(i);
+        return total;
+    }
+
+    /**
+     * @param p 0到1之间的分位
+     * @return 分位所在格的上界(纳秒)，没有记录时返回0
+     */
+    public long percentile(double p){
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for(int i = 0 ; i < counts.length() ; i ++){
+            long c = counts.get(i);
+            snapshot[i%BUCKETS] += c;
+            total += c;
+        }
+        if(total==0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(p*total));
+        long seen = 0;
+        for(int i = 0 ; i < BUCKETS ; i ++){
+            seen += snapshot[i];
+            if(seen>=rank) return upper(i);
+        }
+        return upper(BUCKETS-1);
+    }
+
+    /**
+     * 把other的记录累加进来
+     */
+    public void add(LatencyHistogram other){
+        for(int i = 0 ; i < counts.length() ; i ++){
+            long c = other.counts.get(i);
+            if(c!=0) counts.addAndGet(i, c);
+        }
+    }
+
+    public void reset(){
+        for(int i = 0 ; i < counts.length() ; i ++) counts.set(i, 0);
+    }
+
+    private static int bucket(long v){
+        if(v<SUB) return (int) v;
+        int exp = 63-Long.numberOfLeadingZeros(v);
+        int sub = (int) (v>>>(exp-SUB_BITS)) & (SUB-1);
+        return (exp-SUB_BITS+1)*SUB + sub;
+    }
+
+    private static long upper(int bucket){
+        if(bucket<SUB) return bucket;
+        int exp = bucket/SUB + SUB_BITS-1;
+        long sub = bucket%SUB;
+        return ((SUB+sub+1)<<(exp-SUB_BITS))-1;
+    }
+}
@@ -0,0 +1,436 @@
+package com.xiaoming.gomoku.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 蒙特卡洛树搜索(UCT)，随机走子模拟只用move()判定合法与胜负，禁手规则下黑棋走禁手即判负
+ * 模拟时略加偏向：能成五先成五，对方能成五先挡，黑棋尽量避开禁手点
+ * 可按模拟次数或时间限制，走子后保留子树复用，多线程时每个线程一棵树(根并行)，最后合并根节点访问数
+ */
+public class MonteCarloSearch implements AutoCloseable {
+
+    private static final int N = SimpleGomokuEngine.boardSize;
+    private static final int CELLS = N*N;
+    private static final int FIVE = SimpleGomokuEngine.Shape.FIVE.mask();
+    private static final int THREE_OR_FOUR = SimpleGomokuEngine.Shape.OPEN_FOUR.mask() | SimpleGomokuEngine.Shape.SEMI_OPEN_FOUR.mask()
+            | SimpleGomokuEngine.Shape.FOUR.mask() | SimpleGomokuEngine.Shape.OPEN_THREE.mask()
+            | SimpleGomokuEngine.Shape.SEMI_OPEN_THREE.mask() | SimpleGomokuEngine.Shape.THREE.mask();
+
+    private final Tree[] trees;
+    private final ExecutorService executor;
+
+    private long playoutLimit;
+    private double exploration = 1.4;
+    /**
+     * 每棵树最多的节点数，每个节点约30字节；节点数组按需增长，到上限后不再展开
+     */
+    private int maxNodes = 1<<20;
+
+    private int bestMove = -1;
+    private long playouts;
+    private long elapsedNanos;
+
+    public MonteCarloSearch(int threads){
+        if(threads<1) throw new IllegalArgumentException("threads "+threads);
+        trees = new Tree[threads];
+        for(int i = 0 ; i < threads ; i ++){
+            trees[i] = new Tree(0x9E3779B97F4A7C15L*(i+1));
+        }
+        executor = threads==1 ? null : Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "gomoku-mcts");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * 每一手的模拟总次数，0为只按时间限制
+     */
+    public void setPlayouts(long playouts){
+        this.playoutLimit = playouts;
+    }
+
+    /**
+     * 每棵树(每个线程)最多的节点数，默认1<<20，约30MB
+     */
+    public void setMaxNodes(int maxNodes){
+        if(maxNodes<2*CELLS) throw new IllegalArgumentException("maxNodes "+maxNodes);
+        this.maxNodes = maxNodes;
+    }
+
+    /**
+     * UCB1的探索系数
+     */
+    public void setExploration(double exploration){
+        this.exploration = exploration;
+    }
+
+    /**
+     * 搜索engine当前局面的下一手，engine本身不会被修改
+     * @param timeMs 时间限制，设置了模拟次数时两者先到为止；0为只按模拟次数限制，至少模拟一次
+     * @return 最佳落点 y*boardSize+x，不在落子阶段或没有可走的点时返回-1
+     */
+    public int search(SimpleGomokuEngine engine, long timeMs){
+        if(timeMs<=0 && playoutLimit==0) throw new IllegalArgumentException("neither time nor playout limit");
+        bestMove = -1;
+        playouts = 0;
+        if(engine.status()!=SimpleGomokuEngine.MOVE) return -1;
+        long start = System.nanoTime();
+        //0为不限时
+        long deadline = timeMs<=0 ? 0 : start + timeMs*1_000_000L;
+        long perTree = playoutLimit==0 ? Long.MAX_VALUE : Math.max(1, playoutLimit/trees.length);
+        if(executor==null){
+            trees[0].run(engine.copy(), deadline, perTree);
+        }else{
+            List<Future<?>> futures = new ArrayList<>();
+            for(Tree tree : trees){
+                SimpleGomokuEngine copy = engine.copy();
+                futures.add(executor.submit(() -> tree.run(copy, deadline, perTree)));
+            }
+            for(Future<?> f : futures){
+                try {
+                    f.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        }
+        elapsedNanos = System.nanoTime()-start;
+        //合并各棵树根节点的访问数
+        int[] visits = new int[CELLS];
+        for(Tree tree : trees){
+            playouts += tree.playouts;
+            tree.rootVisits(visits);
+        }
+        //节点数按模拟次数计
+        if(EngineMetrics.ENABLED) EngineMetrics.search("MonteCarloSearch", playouts, elapsedNanos);
+        for(int m = 0 ; m < CELLS ; m ++){
+            if(visits[m]>0 && (bestMove<0 || visits[m]>visits[bestMove])) bestMove = m;
+        }
+        return bestMove;
+    }
+
+    public int bestMove(){
+        return bestMove;
+    }
+
+    /**
+     * 上一次search()的模拟次数(所有线程之和)
+     */
+    public long playouts(){
+        return playouts;
+    }
+
+    public double playoutsPerSecond(){
+        return elapsedNanos==0 ? 0 : playouts*1e9/elapsedNanos;
+    }
+
+    /**
+     * 丢弃保留的搜索树
+     */
+    public void clearTree(){
+        for(Tree tree : trees) tree.clear();
+    }
+
+    @Override
+    public void close(){
+        if(executor!=null) executor.shutdownNow();
+    }
+
+    /**
+     * 一棵搜索树，节点按下标存在平行数组中
+     */
+    private class Tree {
+        private static final int UNEXPANDED = -1;
+        /**
+         * 节点终局结果，相对走入该节点的一方
+         */
+        private static final byte OPEN = 0;
+        private static final byte WON = 1;
+        private static final byte LOST = 2;
+
+        private int[] move = new int[1<<16];
+        private int[] firstChild = new int[move.length];
+        private int[] childCount = new int[move.length];
+        private int[] visits = new int[move.length];
+        private float[] wins = new float[move.length];
+        private long[] hash = new long[move.length];
+        private byte[] side = new byte[move.length];
+        private byte[] terminal = new byte[move.length];
+        private int size;
+        private int root = -1;
+
+        private final int[] path = new int[CELLS+2];
+        private final int[] rows = new int[N];
+        private final int[] forbiddenRows = new int[N];
+        private final int[] candidates = new int[CELLS];
+        private final long[] marked = new long[(CELLS+63)/64];
+        private long[] snapshot = new long[0];
+        private long random;
+        private long playouts;
+
+        Tree(long seed){
+            this.random = seed;
+        }
+
+        void clear(){
+            size = 0;
+            root = -1;
+        }
+
+        void run(SimpleGomokuEngine engine, long deadline, long limit){
+            playouts = 0;
+            reroot(engine);
+            if(snapshot.length<engine.snapshotSize()) snapshot = new long[engine.snapshotSize()*2];
+            //快照前先把禁手点算好，每次恢复后只需重新判断树中走过的线
+            engine.forbiddenPoints(forbiddenRows);
+            engine.snapshot(snapshot);
+            //第一次模拟之后才看时间，之后每64次看一次
+            while (playouts<limit && (playouts==0 || deadline==0 || (playouts & 63)!=0 || System.nanoTime()-deadline<0)){
+                engine.restore(snapshot);
+                iterate(engine);
+                playouts++;
+                if(size+CELLS>=maxNodes) break;
+            }
+        }
+
+        void rootVisits(int[] out){
+            if(root<0 || childCount[root]<=0) return;
+            for(int c = firstChild[root] ; c < firstChild[root]+childCount[root] ; c ++){
+                out[move[c]] += visits[c];
+            }
+        }
+
+        /**
+         * 在旧树的两层内找与当前局面相同的节点作为新根，否则重建
+         */
+        private void reroot(SimpleGomokuEngine engine){
+            long key = engine.hash();
+            int found = -1;
+            if(root>=0){
+                if(hash[root]==key){
+                    found = root;
+                }else if(childCount[root]>0){
+                    for(int c = firstChild[root] ; c < firstChild[root]+childCount[root] && found<0 ; c ++){
+                        if(hash[c]==key) found = c;
+                        for(int g = firstChild[c] ; childCount[c]>0 && g < firstChild[c]+childCount[c] && found<0 ; g ++){
+                            if(hash[g]==key) found = g;
+                        }
+                    }
+                }
+            }
+            if(found<0 || size+CELLS>=maxNodes){
+                size = 0;
+                found = newNode(-1, engine.turn(), key);
+            }
+            root = found;
+        }
+
+        private void iterate(SimpleGomokuEngine engine){
+            int node = root;
+            int depth = 0;
+            path[depth++] = node;
+            while (childCount[node]>0 && terminal[node]==OPEN){
+                node = select(node);
+                engine.move(move[node]%N, move[node]/N, engine.nextColor());
+                path[depth++] = node;
+                if(visits[node]==0) hash[node] = engine.hash();
+            }
+            int winner;
+            if(terminal[node]!=OPEN){
+                winner = terminal[node]==WON ? side[node] : side[node]^1;
+            }else{
+                if(childCount[node]==UNEXPANDED && (node==root || visits[node]>0)){
+                    expand(node, engine);
+                }
+                if(childCount[node]>0){
+                    node = firstChild[node] + (int) ((next()>>>33) % childCount[node]);
+                    int code = engine.move(move[node]%N, move[node]/N, engine.nextColor());
+                    path[depth++] = node;
+                    //散列在第一次走到该节点时记录，没走到过的节点不参与复用
+                    hash[node] = engine.hash();
+                    if((code&SimpleGomokuEngine.MOVE_END)!=0){
+                        terminal[node] = engine.result()==side[node] ? WON : LOST;
+                    }
+                }
+                winner = engine.status()==SimpleGomokuEngine.END ? engine.result() : playout(engine, move[node]);
+            }
+            for(int i = 0 ; i < depth ; i ++){
+                int n = path[i];
+                visits[n]++;
+                if(winner==side[n]) wins[n] += 1;
+                else if(winner<0) wins[n] += 0.5f;
+            }
+        }
+
+        private int select(int node){
+            double logN = Math.log(visits[node]+1);
+            int best = -1;
+            double bestValue = -1;
+            for(int c = firstChild[node] ; c < firstChild[node]+childCount[node] ; c ++){
+                if(terminal[c]==WON) return c;
+                double value = visits[c]==0 ? Double.MAX_VALUE
+                        : wins[c]/visits[c] + exploration*Math.sqrt(logN/visits[c]);
+                if(value>bestValue){
+                    bestValue = value;
+                    best = c;
+                }
+            }
+            return best;
+        }
+
+        private void expand(int node, SimpleGomokuEngine engine){
+            childCount[node] = 0;
+            if(engine.status()!=SimpleGomokuEngine.MOVE) return;
+            int color = engine.nextColor();
+            int turn = engine.turn();
+            if(!engine.nearby(2, rows)){
+                rows[N/2] = 1<<(N/2);
+            }
+            //黑棋去掉禁手点
+            if(color==SimpleGomokuEngine.BLACK && engine.forbiddenPoints(forbiddenRows)>0){
+                for(int y = 0 ; y < N ; y ++) rows[y] &= ~forbiddenRows[y];
+            }
+            int first = size;
+            for(int y = 0 ; y < N ; y ++){
+                int row = rows[y];
+                while (row!=0){
+                    int x = Integer.numberOfTrailingZeros(row);
+                    row &= row-1;
+                    newNode(y*N+x, turn, 0);
+                }
+            }
+            firstChild[node] = first;
+            childCount[node] = size-first;
+        }
+
+        /**
+         * 随机走子直到终局
+         * @return 胜方(0/1)，和棋或离开落子阶段返回-1
+         */
+        private int playout(SimpleGomokuEngine engine, int last){
+            int count = 0;
+            Arrays.fill(marked, 0);
+            if(!engine.nearby(1, rows)){
+                rows[N/2] = 1<<(N/2);
+            }
+            for(int y = 0 ; y < N ; y ++){
+                int row = rows[y];
+                while (row!=0){
+                    int x = Integer.numberOfTrailingZeros(row);
+                    row &= row-1;
+                    count = add(y*N+x, count);
+                }
+            }
+            int previous = -1;
+            while (engine.status()==SimpleGomokuEngine.MOVE && count>0){
+                int color = engine.nextColor();
+                int m = last<0 ? -1 : fivePoint(engine, previous, color);
+                if(m<0 && last>=0) m = fivePoint(engine, last, engine.oppositeColor(color));
+                int i = -1;
+                if(m>=0){
+                    for(int k = 0 ; k < count ; k ++) if(candidates[k]==m) i = k;
+                }
+                if(i<0){
+                    i = (int) ((next()>>>33) % count);
+                    for(int tries = 0 ; tries < 8 && forbidden(engine, candidates[i]%N, candidates[i]/N, color) ; tries ++){
+                        i = (int) ((next()>>>33) % count);
+                    }
+                    m = candidates[i];
+                }
+                candidates[i] = candidates[--count];
+                int code = engine.move(m%N, m/N, color);
+                if((code&SimpleGomokuEngine.MOVE_SUCCESS)==0) continue;
+                previous = last;
+                last = m;
+                int mx = m%N;
+                int my = m/N;
+                for(int dy = -1 ; dy <= 1 ; dy ++){
+                    for(int dx = -1 ; dx <= 1 ; dx ++){
+                        int x = mx+dx;
+                        int y = my+dy;
+                        if(x>=0 && y>=0 && x<N && y<N && engine.colorAt(x, y)==SimpleGomokuEngine.EMPTY){
+                            count = add(y*N+x, count);
+                        }
+                    }
+                }
+            }
+            return engine.status()==SimpleGomokuEngine.END ? engine.result() : -1;
+        }
+
+        private int add(int cell, int count){
+            long bit = 1L<<(cell&63);
+            if((marked[cell>>>6]&bit)==0){
+                marked[cell>>>6] |= bit;
+                candidates[count++] = cell;
+            }
+            return count;
+        }
+
+        /**
+         * 过move的四条线上color的成五点
+         */
+        private int fivePoint(SimpleGomokuEngine engine, int move, int color){
+            if(move<0) return -1;
+            for(int d = 0 ; d < 4 ; d ++){
+                //成五点所在的五格内已有含move在内的四子，move在这条线上至少是三(跳四按连子计为三)
+                if((engine.getShape(move%N, move/N, d, color)&THREE_OR_FOUR)==0) continue;
+                int[] delta = SimpleGomokuEngine.Direction.of(d).delta();
+                for(int k = -4 ; k <= 4 ; k ++){
+                    int x = move%N + k*delta[0];
+                    int y = move/N + k*delta[1];
+                    if(k==0 || x<0 || y<0 || x>=N || y>=N || engine.colorAt(x, y)!=SimpleGomokuEngine.EMPTY) continue;
+                    if((engine.getShape(x, y, d, color)&FIVE)!=0) return y*N+x;
+                }
+            }
+            return -1;
+        }
+
+        private boolean forbidden(SimpleGomokuEngine engine, int x, int y, int color){
+            if(engine.rule()==0 || color!=SimpleGomokuEngine.BLACK) return false;
+            int rule = engine.checkRule(x, y, color);
+            return rule==SimpleGomokuEngine.FORBIDDEN_33 || rule==SimpleGomokuEngine.FORBIDDEN_44 || rule==SimpleGomokuEngine.CONNECT_LONG;
+        }
+
+        private int newNode(int m, int turn, long key){
+            if(size==move.length) grow();
+            int n = size++;
+            move[n] = m;
+            side[n] = (byte) turn;
+            hash[n] = key;
+            childCount[n] = UNEXPANDED;
+            firstChild[n] = 0;
+            visits[n] = 0;
+            wins[n] = 0;
+            terminal[n] = OPEN;
+            return n;
+        }
+
+        private void grow(){
+            int length = Math.min(move.length*2, maxNodes);
+            move = Arrays.copyOf(move, length);
+            firstChild = Arrays.copyOf(firstChild, length);
+            childCount = Arrays.copyOf(childCount, length);
+            visits = Arrays.copyOf(visits, length);
+            wins = Arrays.copyOf(wins, length);
+            hash = Arrays.copyOf(hash, length);
+            side = Arrays.copyOf(side, length);
+            terminal = Arrays.copyOf(terminal, length);
+        }
+
+        private long next(){
+            random ^= random<<13;
+            random ^= random>>>7;
+            random ^= random<<17;
+            return random;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.xiaoming.gomoku.engine;
+
+import java.util.Arrays;
+
+/**
+ * 候选着法生成：维护已有棋子周围1格与2格内的点(横、竖、斜距离)，落子或悔棋后调用update()增量更新
+ * 可按棋型排序：己方成五、挡对方成五、己方活四、挡对方活四、己方冲四与活三，其余按棋型分数
+ * 禁手规则下黑棋的禁手点(见SimpleGomokuEngine.forbiddenPoints())不会被生成
+ */
+public class MoveGenerator {
+
+    private static final int N = SimpleGomokuEngine.boardSize;
+    private static final int CELLS = N*N;
+
+    private static final int FIVE = SimpleGomokuEngine.Shape.FIVE.mask();
+    private static final int OPEN_FOUR = SimpleGomokuEngine.Shape.OPEN_FOUR.mask();
+    private static final int THREAT = SimpleGomokuEngine.Shape.SEMI_OPEN_FOUR.mask() | SimpleGomokuEngine.Shape.OPEN_THREE.mask();
+
+    /**
+     * 排序的档次，高位决定先后，低位为档内的棋型分数；GomokuSearch在此之上调整档内先后
+     */
+    static final int TIER_SHIFT = 24;
+    static final int WIN = 6<<TIER_SHIFT;
+    static final int BLOCK_FIVE = 5<<TIER_SHIFT;
+    private static final int OWN_FOUR = 4<<TIER_SHIFT;
+    private static final int BLOCK_FOUR = 3<<TIER_SHIFT;
+    static final int OWN_THREAT = 2<<TIER_SHIFT;
+    /**
+     * 档内分数，按Shape序数
+     */
+    private static final int[] WEIGHTS = {0, 0, 0, 300, 20, 200, 30, 5, 8, 1};
+
+    private final SimpleGomokuEngine engine;
+    /**
+     * 每个点1格与2格内的棋子数
+     */
+    private final byte[] near1 = new byte[CELLS];
+    private final byte[] near2 = new byte[CELLS];
+    /**
+     * 计数大于0的点，按行存放，第x位对应(x,y)
+     */
+    private final int[] rows1 = new int[N];
+    private final int[] rows2 = new int[N];
+    /**
+     * 已经计入的棋子
+     */
+    private final int[] stones = new int[N];
+    private final int[] rows = new int[N];
+    private final int[] forbidden = new int[N];
+    private final int[] scores = new int[CELLS];
+
+    public MoveGenerator(SimpleGomokuEngine engine){
+        this.engine = engine;
+        reset();
+    }
+
+    /**
+     * 按当前棋盘重新统计
+     */
+    public void reset(){
+        Arrays.fill(near1, (byte) 0);
+        Arrays.fill(near2, (byte) 0);
+        Arrays.fill(rows1, 0);
+        Arrays.fill(rows2, 0);
+        Arrays.fill(stones, 0);
+        for(int y = 0 ; y < N ; y ++){
+            int row = engine.rowBits(y, SimpleGomokuEngine.BLACK) | engine.rowBits(y, SimpleGomokuEngine.WHITE);
+            while (row!=0){
+                int x = Integer.numberOfTrailingZeros(row);
+                row &= row-1;
+                update(x, y);
+            }
+        }
+    }
+
+    /**
+     * (x,y)处落子或撤销后调用
+     */
+    public void update(int x, int y){
+        boolean stone = engine.colorAt(x, y)!=SimpleGomokuEngine.EMPTY;
+        boolean counted = (stones[y]>>>x & 1)!=0;
+        if(stone==counted) return;
+        stones[y] ^= 1<<x;
+        int delta = stone ? 1 : -1;
+        for(int cy = Math.max(0, y-2) ; cy <= Math.min(N-1, y+2) ; cy ++){
+            for(int cx = Math.max(0, x-2) ; cx <= Math.min(N-1, x+2) ; cx ++){
+                int i = cy*N+cx;
+                near2[i] += delta;
+                if(near2[i]==0) rows2[cy] &= ~(1<<cx);
+                else rows2[cy] |= 1<<cx;
+                if(Math.abs(cx-x)<=1 && Math.abs(cy-y)<=1){
+                    near1[i] += delta;
+                    if(near1[i]==0) rows1[cy] &= ~(1<<cx);
+                    else rows1[cy] |= 1<<cx;
+                }
+            }
+        }
+    }
+
+    /**
+     * 与已有棋子距离不超过radius(1或2)的空点，按行写入rows，与SimpleGomokuEngine.nearby()结果相同
+     * @return 棋盘上没有棋子时返回false
+     */
+    public boolean candidates(int radius, int[] rows){
+        int[] near = radius<=1 ? rows1 : rows2;
+        boolean any = false;
+        for(int y = 0 ; y < N ; y ++){
+            any |= stones[y]!=0;
+            rows[y] = near[y] & ~stones[y];
+        }
+        return any;
+    }
+
+    /**
+     * 生成下一手的候选着法，空棋盘时为天元
+     * @param ordered 是否按棋型排序，否则按位置顺序
+     * @return 着法数目，着法(y*boardSize+x)写入out
+     */
+    public int generate(int radius, boolean ordered, int[] out){
+        return generate(radius, ordered, out, scores);
+    }
+
+    /**
+     * 同generate(radius, ordered, out)，排序时各着法的分数按同样的先后写入scores
+     */
+    public int generate(int radius, boolean ordered, int[] out, int[] scores){
+        if(!candidates(radius, rows)){
+            out[0] = N/2*N+N/2;
+            scores[0] = 0;
+            return 1;
+        }
+        int own = engine.nextColor();
+        int opp = engine.oppositeColor(own);
+        if(own==SimpleGomokuEngine.BLACK && engine.rule()>0){
+            if(engine.forbiddenPoints(forbidden)>0){
+                for(int y = 0 ; y < N ; y ++) rows[y] &= ~forbidden[y];
+            }
+        }
+        int count = 0;
+        for(int y = 0 ; y < N ; y ++){
+            int row = rows[y];
+            while (row!=0){
+                int x = Integer.numberOfTrailingZeros(row);
+                row &= row-1;
+                int move = y*N+x;
+                if(!ordered){
+                    out[count++] = move;
+                    continue;
+                }
+                int score = score(x, y, own, opp);
+                //插入排序，降序
+                int i = count++;
+                while (i>0 && scores[i-1]<score){
+                    scores[i] = scores[i-1];
+                    out[i] = out[i-1];
+                    i--;
+                }
+                scores[i] = score;
+                out[i] = move;
+            }
+        }
+        return count;
+    }
+
+    private int score(int x, int y, int own, int opp){
+        int ownMask = 0;
+        int oppMask = 0;
+        int score = 0;
+        for(int d = 0 ; d < 4 ; d ++){
+            int m = engine.getShape(x, y, d, own);
+            int o = engine.getShape(x, y, d, opp);
+            ownMask |= m;
+            oppMask |= o;
+            score += weight(m) + weight(o);
+        }
+        if((ownMask&FIVE)!=0) return WIN;
+        if((oppMask&FIVE)!=0) return BLOCK_FIVE;
+        if((ownMask&OPEN_FOUR)!=0) return OWN_FOUR + score;
+        if((oppMask&OPEN_FOUR)!=0) return BLOCK_FOUR + score;
+        if((ownMask&THREAT)!=0) return OWN_THREAT + score;
+        return score;
+    }
+
+    private static int weight(int mask){
+        int w = 0;
+        while (mask!=0){
+            w += WEIGHTS[Integer.numberOfTrailingZeros(mask)];
+            mask &= mask-1;
+        }
+        return w;
+    }
+}
@@ -0,0 +1,208 @@
+package com.xiaoming.gomoku.engine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 开局库，覆盖落子、声明打点数量、交换、打点几个开局阶段
+ * 局面取8个对称变换下hash(symmetry)的最小值，再混入规则与打点阶段的打点数量为键，库中的落点按取得最小值的那个变换存放，查询时变换回来
+ * 条目按(键,值)两个long按键升序排列，可以放在堆上的long[]中，也可以直接映射文件，查找为二分查找
+ * 值的低16位为数据(落点、打点数量、是否交换)，其上32位为权重，同一键可以有多个条目，按权重降序
+ */
+public class OpeningBook {
+
+    private static final long MAGIC = 0x474D4B424F4F4B32L;
+    /**
+     * 文件头：MAGIC 条目数
+     */
+    private static final int HEADER = 2;
+
+    private final LongBuffer entries;
+    private final int size;
+
+    private OpeningBook(LongBuffer entries){
+        this.entries = entries;
+        this.size = entries.limit()/2;
+    }
+
+    /**
+     * 映射write()写出的文件，不读入堆内存
+     */
+    public static OpeningBook open(Path file) throws IOException {
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+            LongBuffer all = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).asLongBuffer();
+            if(all.limit()<HEADER || all.get(0)!=MAGIC) throw new IOException("not an opening book: "+file);
+            long count = all.get(1);
+            if(count<0 || HEADER+count*2>all.limit()) throw new IOException("truncated opening book: "+file);
+            all.position(HEADER);
+            all.limit((int) (HEADER+count*2));
+            return new OpeningBook(all.slice());
+        }
+    }
+
+    public int size(){
+        return size;
+    }
+
+    /**
+     * 落子阶段库中权重最高的一手
+     * @return 落点 y*boardSize+x，库中没有时返回-1
+     */
+    public int bestMove(SimpleGomokuEngine engine){
+        if(engine.status()!=SimpleGomokuEngine.MOVE) return -1;
+        return best(engine, true);
+    }
+
+    /**
+     * 声明阶段建议的打点数量，库中没有时返回-1
+     */
+    public int annCount(SimpleGomokuEngine engine){
+        if(engine.status()!=SimpleGomokuEngine.ANN) return -1;
+        return best(engine, false);
+    }
+
+    /**
+     * 交换阶段的建议，1交换 0不交换，库中没有时返回-1
+     */
+    public int swap(SimpleGomokuEngine engine){
+        if(engine.status()!=SimpleGomokuEngine.SWAP) return -1;
+        return best(engine, false);
+    }
+
+    /**
+     * 打点阶段建议的打点位置，按权重降序写入out
+     * @return 写入的数目，库中没有时为0
+     */
+    public int dots(SimpleGomokuEngine engine, int[] out){
+        if(engine.status()!=SimpleGomokuEngine.DOT) return 0;
+        int symmetry = canonicalSymmetry(engine);
+        long key = key(engine, symmetry);
+        int inverse = SimpleGomokuEngine.inverseSymmetry(symmetry);
+        int count = 0;
+        for(int i = find(key) ; i>=0 && i<size && entries.get(i*2)==key && count<out.length ; i ++){
+            out[count++] = SimpleGomokuEngine.transform(data(entries.get(i*2+1)), inverse);
+        }
+        return count;
+    }
+
+    private int best(SimpleGomokuEngine engine, boolean position){
+        int symmetry = canonicalSymmetry(engine);
+        int i = find(key(engine, symmetry));
+        if(i<0) return -1;
+        int data = data(entries.get(i*2+1));
+        return position ? SimpleGomokuEngine.transform(data, SimpleGomokuEngine.inverseSymmetry(symmetry)) : data;
+    }
+
+    /**
+     * 键的第一个条目，没有时返回-1
+     */
+    private int find(long key){
+        int lo = 0;
+        int hi = size;
+        while (lo<hi){
+            int mid = (lo+hi)>>>1;
+            if(entries.get(mid*2)<key) lo = mid+1;
+            else hi = mid;
+        }
+        return lo<size && entries.get(lo*2)==key ? lo : -1;
+    }
+
+    /**
+     * 取得最小hash(symmetry)的变换序号
+     */
+    static int canonicalSymmetry(SimpleGomokuEngine engine){
+        int best = 0;
+        long min = engine.hash(0);
+        for(int t = 1 ; t < SimpleGomokuEngine.SYMMETRY_COUNT ; t ++){
+            long h = engine.hash(t);
+            if(h<min){
+                min = h;
+                best = t;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * 库中的键：hash(symmetry)再混入规则与打点阶段声明的打点数量，否则不同规则、不同打点数量的局面共用一个键
+     */
+    static long key(SimpleGomokuEngine engine, int symmetry){
+        int dotNumber = engine.status()==SimpleGomokuEngine.DOT ? engine.dotNumber() : 0;
+        return engine.hash(symmetry) ^ SimpleGomokuEngine.splitMix(1L<<40 | (long) dotNumber<<2 | engine.rule());
+    }
+
+    private static int data(long value){
+        return (int) value & 0xFFFF;
+    }
+
+    /**
+     * 收集开局库条目，同一局面同一数据的权重累加
+     */
+    public static class Builder {
+
+        private final Map<Long, Map<Integer, Long>> positions = new HashMap<>();
+
+        /**
+         * @param engine 当前局面
+         * @param data 落子与打点阶段为落点(y*boardSize+x)，声明阶段为打点数量，交换阶段为1交换 0不交换
+         * @param weight 权重，如胜局数
+         */
+        public Builder add(SimpleGomokuEngine engine, int data, int weight){
+            int status = engine.status();
+            if(status!=SimpleGomokuEngine.MOVE && status!=SimpleGomokuEngine.ANN
+                    && status!=SimpleGomokuEngine.SWAP && status!=SimpleGomokuEngine.DOT){
+                throw new IllegalArgumentException("status "+status);
+            }
+            if(data<0 || data>0xFFFF) throw new IllegalArgumentException("data "+data);
+            int symmetry = canonicalSymmetry(engine);
+            if(status==SimpleGomokuEngine.MOVE || status==SimpleGomokuEngine.DOT){
+                data = SimpleGomokuEngine.transform(data, symmetry);
+            }
+            positions.computeIfAbsent(key(engine, symmetry), k -> new HashMap<>()).merge(data, (long) weight, Long::sum);
+            return this;
+        }
+
+        public OpeningBook build(){
+            return new OpeningBook(LongBuffer.wrap(entries()));
+        }
+
+        /**
+         * 写出可以用open()映射的文件
+         */
+        public void write(Path file) throws IOException {
+            long[] entries = entries();
+            ByteBuffer buf = ByteBuffer.allocate((HEADER+entries.length)*Long.BYTES);
+            buf.asLongBuffer().put(MAGIC).put(entries.length/2).put(entries);
+            try(FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)){
+                while (buf.hasRemaining()) channel.write(buf);
+            }
+        }
+
+        private long[] entries(){
+            List<long[]> list = new ArrayList<>();
+            for(Map.Entry<Long, Map<Integer, Long>> p : positions.entrySet()){
+                for(Map.Entry<Integer, Long> d : p.getValue().entrySet()){
+                    long weight = Math.min(d.getValue(), 0xFFFFFFFFL);
+                    list.add(new long[]{p.getKey(), weight<<16 | d.getKey()});
+                }
+            }
+            //键升序，同键按权重降序
+            list.sort((a, b) -> a[0]!=b[0] ? Long.compare(a[0], b[0]) : Long.compare(b[1]>>>16, a[1]>>>16));
+            long[] entries = new long[list.size()*2];
+            for(int i = 0 ; i < list.size() ; i ++){
+                entries[i*2] = list.get(i)[0];
+                entries[i*2+1] = list.get(i)[1];
+            }
+            return entries;
+        }
+    }
+}
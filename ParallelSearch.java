@@ -0,0 +1,186 @@
+package com.xiaoming.gomoku.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 多线程搜索，每个线程在自己的引擎副本上运行GomokuSearch，所有线程共用一张置换表
+ * LAZY_SMP: 所有线程搜同一局面，辅助线程错开起始深度，靠置换表互相剪枝，取完成深度最深的结果
+ * ROOT_SPLIT: 根节点着法按排序轮流分给各线程，取各线程都完成的最深一层中分数最高的着法
+ */
+public class ParallelSearch implements AutoCloseable {
+
+    public static final int LAZY_SMP = 0;
+    public static final int ROOT_SPLIT = 1;
+
+    private static final int CELLS = SimpleGomokuEngine.boardSize*SimpleGomokuEngine.boardSize;
+
+    private final int threads;
+    private final int mode;
+    private final TranspositionTable table;
+    private final ExecutorService executor;
+
+    private int bestMove = -1;
+    private int bestScore;
+    private int depth;
+    private long nodes;
+
+    public ParallelSearch(int threads, int mode){
+        this(threads, mode, new TranspositionTable(1<<22));
+    }
+
+    public ParallelSearch(int threads, int mode, TranspositionTable table){
+        if(threads<1) throw new IllegalArgumentException("threads "+threads);
+        if(mode!=LAZY_SMP && mode!=ROOT_SPLIT) throw new IllegalArgumentException("mode "+mode);
+        this.threads = threads;
+        this.mode = mode;
+        this.table = table;
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "gomoku-search");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * 搜索engine当前局面的下一手，engine本身不会被修改
+     * @return 最佳落点 y*boardSize+x，不在落子阶段或没有可走的点时返回-1
+     */
+    public int search(SimpleGomokuEngine engine, long timeMs){
+        bestMove = -1;
+        bestScore = 0;
+        depth = 0;
+        nodes = 0;
+        if(engine.status()!=SimpleGomokuEngine.MOVE) return -1;
+        int[] root = new int[CELLS];
+        int count = new GomokuSearch(engine, table).rootMoves(root);
+        if(count<=1){
+            bestMove = count==0 ? -1 : root[0];
+            return bestMove;
+        }
+        int workers = mode==ROOT_SPLIT ? Math.min(threads, count) : threads;
+        GomokuSearch[] searches = new GomokuSearch[workers];
+        for(int i = 0 ; i < workers ; i ++){
+            searches[i] = new GomokuSearch(engine.copy(), table);
+            searches[i].setSharedTable(true);
+            if(mode==LAZY_SMP){
+                //一半辅助线程从第2层开始，与主线程错开
+                searches[i].setStartDepth(1 + (i&1));
+            }else{
+                int[] part = new int[(count-i+workers-1)/workers];
+                for(int j = i, k = 0 ; j < count ; j += workers, k ++){
+                    part[k] = root[j];
+                }
+                searches[i].setRootMoves(part);
+            }
+        }
+        //代数只在这里推进一次，各线程按同一代写入，互相不把对方的新条目当作过期
+        table.newSearch();
+        List<Future<?>> futures = new ArrayList<>();
+        for(GomokuSearch s : searches){
+            futures.add(executor.submit(() -> s.search(timeMs)));
+        }
+        await(futures.get(0));
+        if(mode==LAZY_SMP){
+            //主线程结束后其余线程不再有意义
+            for(int i = 1 ; i < workers ; i ++){
+                while (!futures.get(i).isDone()){
+                    searches[i].stop();
+                    await(futures.get(i), 1);
+                }
+            }
+        }else{
+            for(Future<?> f : futures) await(f);
+        }
+        for(GomokuSearch s : searches) nodes += s.nodes();
+        if(mode==LAZY_SMP) pickDeepest(searches);
+        else pickBest(searches);
+        return bestMove;
+    }
+
+    public int bestMove(){
+        return bestMove;
+    }
+
+    public int score(){
+        return bestScore;
+    }
+
+    public int depth(){
+        return depth;
+    }
+
+    /**
+     * 所有线程的节点数之和
+     */
+    public long nodes(){
+        return nodes;
+    }
+
+    @Override
+    public void close(){
+        executor.shutdownNow();
+    }
+
+    private void pickDeepest(GomokuSearch[] searches){
+        GomokuSearch best = searches[0];
+        for(GomokuSearch s : searches){
+            if(s.depth()>best.depth() && s.bestMove()>=0) best = s;
+        }
+        bestMove = best.bestMove();
+        bestScore = best.score();
+        depth = best.depth();
+    }
+
+    private void pickBest(GomokuSearch[] searches){
+        int common = Integer.MAX_VALUE;
+        for(GomokuSearch s : searches){
+            common = Math.min(common, s.depth());
+        }
+        if(common==0){
+            //时间太短，有线程一层都没有完成
+            for(GomokuSearch s : searches){
+                if(s.bestMove()>=0){
+                    bestMove = s.bestMove();
+                    return;
+                }
+            }
+            return;
+        }
+        bestScore = Integer.MIN_VALUE;
+        for(GomokuSearch s : searches){
+            if(s.scoreAt(common)>bestScore){
+                bestScore = s.scoreAt(common);
+                bestMove = s.moveAt(common);
+            }
+        }
+        depth = common;
+    }
+
+    private static void await(Future<?> future){
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static void await(Future<?> future, long ms){
+        try {
+            future.get(ms, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ignored) {
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package com.xiaoming.gomoku.engine;
+
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 合法操作序列计数(perft)：从一个局面出发，按棋局状态列出全部合法操作，数出长度恰为depth的序列
+ * 落子阶段为每个空点落子与虚手(受pass()的限制)，声明阶段为1~maxDots个打点，交换阶段为交换与不交换，
+ * 打点阶段为全部通过checkDot的打点组合(按落点升序，不计排列)，选择阶段为每个打点；提前结束的序列不再延伸，也不计入
+ * 计数按最后一个操作分类：普通落子、成五、三三、四四、长连(后三种为禁手规则下黑棋判负)、虚手、声明、交换、打点、选择
+ * 规则改写前后数字应完全相同；最后一层的落子只调用checkRule判断，不实际落下
+ * 多线程时按第一层的操作分给各线程，每个线程一个引擎副本
+ * 用法: Perft [-rule r] [-depth d] [-threads n] [-dots n] [-record 棋谱的十六进制]
+ */
+public final class Perft {
+
+    public static final int MOVE = 0;
+    public static final int FIVE = 1;
+    public static final int FORBIDDEN_33 = 2;
+    public static final int FORBIDDEN_44 = 3;
+    public static final int CONNECT_LONG = 4;
+    public static final int PASS = 5;
+    public static final int ANN = 6;
+    public static final int SWAP = 7;
+    public static final int DOT = 8;
+    public static final int CHOICE = 9;
+    public static final int KINDS = 10;
+
+    private static final String[] NAMES = {"move", "five", "33", "44", "long", "pass", "ann", "swap", "dot", "choice"};
+    private static final int N = SimpleGomokuEngine.boardSize;
+    private static final int CELLS = N*N;
+    private static final int FULL = (1<<N)-1;
+
+    private final int maxDots;
+
+    /**
+     * @param maxDots 声明阶段枚举的最大打点数量
+     */
+    public Perft(int maxDots){
+        if(maxDots<1) throw new IllegalArgumentException("maxDots "+maxDots);
+        this.maxDots = maxDots;
+    }
+
+    /**
+     * 计数结果，counts按最后一个操作的分类
+     */
+    public static final class Result {
+        private final long[] counts = new long[KINDS];
+        private long nanos;
+
+        public long nodes(){
+            long n = 0;
+            for(long c : counts) n += c;
+            return n;
+        }
+
+        public long count(int kind){
+            return counts[kind];
+        }
+
+        public long nanos(){
+            return nanos;
+        }
+
+        public double nodesPerSecond(){
+            return nanos==0 ? 0 : nodes()*1e9/nanos;
+        }
+
+        @Override
+        public String toString(){
+            StringBuilder sb = new StringBuilder("nodes=").append(nodes());
+            for(int k = 0 ; k < KINDS ; k ++){
+                if(counts[k]>0) sb.append(' ').append(NAMES[k]).append('=').append(counts[k]);
+            }
+            return sb.append(String.format(" nodes/s=%.0f", nodesPerSecond())).toString();
+        }
+    }
+
+    /**
+     * 用threads个线程计数，engine本身不会被修改
+     */
+    public Result run(SimpleGomokuEngine engine, int depth, int threads) throws InterruptedException {
+        if(depth<1) throw new IllegalArgumentException("depth "+depth);
+        long start = System.nanoTime();
+        List<int[]> roots = rootActions(engine);
+        AtomicInteger next = new AtomicInteger();
+        List<Thread> workers = new ArrayList<>();
+        List<Worker> results = new ArrayList<>();
+        int count = Math.max(1, Math.min(threads, roots.size()));
+        for(int t = 0 ; t < count ; t ++){
+            Worker worker = new Worker(engine.copy(), depth);
+            Thread thread = new Thread(() -> {
+                while (true){
+                    int i = next.getAndIncrement();
+                    if(i>=roots.size()) break;
+                    worker.root(roots.get(i));
+                }
+            }, "gomoku-perft-"+t);
+            thread.start();
+            workers.add(thread);
+            results.add(worker);
+        }
+        for(Thread thread : workers) thread.join();
+        Result result = new Result();
+        for(Worker worker : results){
+            for(int k = 0 ; k < KINDS ; k ++) result.counts[k] += worker.counts[k];
+        }
+        result.nanos = System.nanoTime()-start;
+        return result;
+    }
+
+    /**
+     * 第一层的全部操作，打点组合按落点升序，落子为{pos}，虚手为{-1}
+     */
+    private List<int[]> rootActions(SimpleGomokuEngine engine){
+        List<int[]> actions = new ArrayList<>();
+        SimpleGomokuEngine copy = engine.copy();
+        switch (copy.status()){
+            case SimpleGomokuEngine.MOVE:
+                for(int y = 0 ; y < N ; y ++){
+                    int empty = ~(copy.rowBits(y, SimpleGomokuEngine.BLACK) | copy.rowBits(y, SimpleGomokuEngine.WHITE)) & FULL;
+                    while (empty!=0){
+                        int x = Integer.numberOfTrailingZeros(empty);
+                        empty &= empty-1;
+                        actions.add(new int[]{y*N+x});
+                    }
+                }
+                if(copy.pass()){
+                    copy.undo();
+                    actions.add(new int[]{-1});
+                }
+                break;
+            case SimpleGomokuEngine.ANN:
+                for(int n = 1 ; n <= maxDots ; n ++) actions.add(new int[]{n});
+                break;
+            case SimpleGomokuEngine.SWAP:
+                actions.add(new int[]{0});
+                actions.add(new int[]{1});
+                break;
+            case SimpleGomokuEngine.DOT:
+                int[] dots = new int[copy.dotNumber()];
+                combinations(copy, dots, 0, 0, () -> actions.add(dots.clone()));
+                break;
+            case SimpleGomokuEngine.CHOICE:
+                for(int i = 0 ; i < copy.dotNumber() ; i ++) actions.add(new int[]{i});
+                break;
+        }
+        return actions;
+    }
+
+    /**
+     * 按落点升序枚举空点组合，每个通过checkDot的组合调用一次visit，调用时组合在dots中，引擎仍在打点阶段
+     */
+    private static void combinations(SimpleGomokuEngine engine, int[] dots, int i, int from, Runnable visit){
+        if(i==dots.length){
+            if(engine.dot(dots)){
+                engine.undo();
+                visit.run();
+            }
+            return;
+        }
+        for(int pos = from ; pos < CELLS ; pos ++){
+            if(engine.colorAt(pos%N, pos/N)!=SimpleGomokuEngine.EMPTY) continue;
+            dots[i] = pos;
+            combinations(engine, dots, i+1, pos+1, visit);
+        }
+    }
+
+    private final class Worker {
+        private final SimpleGomokuEngine engine;
+        private final int depth;
+        private final long[] counts = new long[KINDS];
+        /**
+         * 各层的打点数组，打点后引擎持有数组直到撤销
+         */
+        private final int[][] dots;
+
+        Worker(SimpleGomokuEngine engine, int depth){
+            this.engine = engine;
+            this.depth = depth;
+            this.dots = new int[depth+1][];
+        }
+
+        void root(int[] action){
+            switch (engine.status()){
+                case SimpleGomokuEngine.MOVE:
+                    if(action[0]<0){
+                        engine.pass();
+                        after(PASS);
+                    }else{
+                        int code = engine.move(action[0]%N, action[0]/N, engine.nextColor());
+                        after(kindOf(code));
+                    }
+                    break;
+                case SimpleGomokuEngine.ANN:
+                    engine.ann(action[0]);
+                    after(ANN);
+                    break;
+                case SimpleGomokuEngine.SWAP:
+                    engine.swap(action[0]==1);
+                    after(SWAP);
+                    break;
+                case SimpleGomokuEngine.DOT:
+                    engine.dot(action);
+                    after(DOT);
+                    break;
+                case SimpleGomokuEngine.CHOICE:
+                    engine.choice(action[0]);
+                    after(CHOICE);
+                    break;
+            }
+        }
+
+        /**
+         * 第一层操作之后：只有一层时计数，否则继续
+         */
+        private void after(int kind){
+            if(depth==1) counts[kind]++;
+            else if(engine.status()!=SimpleGomokuEngine.END) perft(depth-1);
+            engine.undo();
+        }
+
+        private void perft(int depth){
+            switch (engine.status()){
+                case SimpleGomokuEngine.MOVE:
+                    moves(depth);
+                    if(engine.pass()){
+                        if(depth==1) counts[PASS]++;
+                        else perft(depth-1);
+                        engine.undo();
+                    }
+                    break;
+                case SimpleGomokuEngine.ANN:
+                    for(int n = 1 ; n <= maxDots ; n ++){
+                        engine.ann(n);
+                        if(depth==1) counts[ANN]++;
+                        else perft(depth-1);
+                        engine.undo();
+                    }
+                    break;
+                case SimpleGomokuEngine.SWAP:
+                    for(int s = 0 ; s < 2 ; s ++){
+                        engine.swap(s==1);
+                        if(depth==1) counts[SWAP]++;
+                        else perft(depth-1);
+                        engine.undo();
+                    }
+                    break;
+                case SimpleGomokuEngine.DOT:
+                    if(dots[depth]==null || dots[depth].length!=engine.dotNumber()) dots[depth] = new int[engine.dotNumber()];
+                    int[] buf = dots[depth];
+                    combinations(engine, buf, 0, 0, () -> {
+                        if(depth==1){
+                            counts[DOT]++;
+                            return;
+                        }
+                        engine.dot(buf);
+                        perft(depth-1);
+                        engine.undo();
+                    });
+                    break;
+                case SimpleGomokuEngine.CHOICE:
+                    for(int i = 0 ; i < engine.dotNumber() ; i ++){
+                        engine.choice(i);
+                        if(depth==1) counts[CHOICE]++;
+                        else perft(depth-1);
+                        engine.undo();
+                    }
+                    break;
+            }
+        }
+
+        private void moves(int depth){
+            int color = engine.nextColor();
+            for(int y = 0 ; y < N ; y ++){
+                int empty = ~(engine.rowBits(y, SimpleGomokuEngine.BLACK) | engine.rowBits(y, SimpleGomokuEngine.WHITE)) & FULL;
+                while (empty!=0){
+                    int x = Integer.numberOfTrailingZeros(empty);
+                    empty &= empty-1;
+                    if(depth==1){
+                        counts[kindOf(engine.checkRule(x, y, color), color)]++;
+                        continue;
+                    }
+                    engine.move(x, y, color);
+                    if(engine.status()!=SimpleGomokuEngine.END) perft(depth-1);
+                    engine.undo();
+                }
+            }
+        }
+
+        /**
+         * 与落子时的判断相同：成五结束，禁手规则下黑棋三三、四四、长连判负
+         */
+        private int kindOf(int verdict, int color){
+            if(verdict==SimpleGomokuEngine.CONNECT5) return FIVE;
+            if(engine.rule()>0 && color==SimpleGomokuEngine.BLACK) return forbiddenKind(verdict);
+            return MOVE;
+        }
+
+        private int kindOf(int code){
+            if((code&SimpleGomokuEngine.MOVE_END)==0) return MOVE;
+            int kind = forbiddenKind(code>>>SimpleGomokuEngine.MOVE_RULE_SHIFT);
+            return kind==MOVE ? FIVE : kind;
+        }
+    }
+
+    private static int forbiddenKind(int verdict){
+        switch (verdict){
+            case SimpleGomokuEngine.FORBIDDEN_33: return FORBIDDEN_33;
+            case SimpleGomokuEngine.FORBIDDEN_44: return FORBIDDEN_44;
+            case SimpleGomokuEngine.CONNECT_LONG: return CONNECT_LONG;
+            default: return MOVE;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int rule = 1;
+        int depth = 3;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int dots = 2;
+        String record = null;
+        for(int i = 0 ; i+1 < args.length ; i += 2){
+            String v = args[i+1];
+            switch (args[i]){
+                case "-rule": rule = Integer.parseInt(v); break;
+                case "-depth": depth = Integer.parseInt(v); break;
+                case "-threads": threads = Integer.parseInt(v); break;
+                case "-dots": dots = Integer.parseInt(v); break;
+                case "-record": record = v; break;
+                default: throw new IllegalArgumentException("unknown option "+args[i]);
+            }
+        }
+        SimpleGomokuEngine engine = record==null ? new SimpleGomokuEngine(rule)
+                : SimpleGomokuEngine.replay(HexFormat.of().parseHex(record));
+        Perft perft = new Perft(dots);
+        for(int d = 1 ; d <= depth ; d ++){
+            System.out.println("depth="+d+" "+perft.run(engine, d, threads));
+        }
+    }
+}
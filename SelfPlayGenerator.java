@@ -0,0 +1,296 @@
+package com.xiaoming.gomoku.engine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 自对弈生成训练数据：每个线程一个引擎与GomokuSearch，开局若干手随机，之后按固定深度搜索落子
+ * 每个落子阶段的局面写一条定长记录，对局结束后补上胜负
+ * 文件头16字节：MAGIC(long) 记录字节数(int) 棋盘大小(int)，之后为RECORD字节的定长记录，小端：
+ * [0,225) 黑子平面 [225,450) 白子平面 [450,675) 黑棋禁手点平面，每点一个字节0或1，按y*boardSize+x
+ * 675 下一手颜色(1黑 2白) 676 下一手一方的胜负(1胜 -1负 0和) 677 规则 678-679 实际落点(short)
+ * 记录先写入各线程的缓冲区，满了再整块写到文件，内存占用与局数无关
+ * 用法: SelfPlayGenerator 输出文件 [-games n] [-threads n] [-rule r] [-depth d] [-random n] [-seed s]
+ */
+public class SelfPlayGenerator {
+
+    private static final int N = SimpleGomokuEngine.boardSize;
+    private static final int CELLS = N*N;
+    private static final long MAGIC = 0x474D4B54454E5331L;
+    private static final int HEADER = 16;
+
+    public static final int BLACK_PLANE = 0;
+    public static final int WHITE_PLANE = CELLS;
+    public static final int FORBIDDEN_PLANE = 2*CELLS;
+    public static final int SIDE = 3*CELLS;
+    public static final int OUTCOME = SIDE+1;
+    public static final int RULE = SIDE+2;
+    public static final int MOVE = SIDE+3;
+    public static final int RECORD = SIDE+5;
+
+    /**
+     * 每个线程缓冲的记录数
+     */
+    private static final int BUFFER_RECORDS = 1024;
+
+    private final int rule;
+    private int depth = 4;
+    private int randomPlies = 4;
+    private long seed = 1;
+
+    public SelfPlayGenerator(int rule){
+        if(rule<0 || rule>2) throw new IllegalArgumentException("rule "+rule);
+        this.rule = rule;
+    }
+
+    /**
+     * 搜索深度
+     */
+    public void setDepth(int depth){
+        this.depth = Math.max(1, depth);
+    }
+
+    /**
+     * 开局随机落子的手数，随机落点在已有棋子一格内
+     */
+    public void setRandomPlies(int randomPlies){
+        this.randomPlies = Math.max(0, randomPlies);
+    }
+
+    /**
+     * 第i局使用种子seed+i，相同参数生成相同的对局；多线程时各局写出的先后顺序可能不同
+     */
+    public void setSeed(long seed){
+        this.seed = seed;
+    }
+
+    /**
+     * 用threads个线程下games局，写到file(覆盖)
+     * @return 写出的局面数
+     */
+    public long generate(Path file, long games, int threads) throws IOException, InterruptedException {
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)){
+            ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+            header.putLong(MAGIC).putInt(RECORD).putInt(N).flip();
+            while (header.hasRemaining()) channel.write(header);
+            AtomicLong next = new AtomicLong();
+            AtomicLong positions = new AtomicLong();
+            List<Thread> workers = new ArrayList<>();
+            List<Throwable> failures = new ArrayList<>();
+            for(int t = 0 ; t < threads ; t ++){
+                Thread worker = new Thread(() -> {
+                    try {
+                        positions.addAndGet(new Worker(channel).run(next, games));
+                    } catch (Throwable e) {
+                        synchronized (failures){
+                            failures.add(e);
+                        }
+                        next.set(games);
+                    }
+                }, "gomoku-selfplay-"+t);
+                worker.start();
+                workers.add(worker);
+            }
+            for(Thread worker : workers) worker.join();
+            if(!failures.isEmpty()){
+                Throwable e = failures.get(0);
+                if(e instanceof IOException) throw (IOException) e;
+                if(e instanceof RuntimeException) throw (RuntimeException) e;
+                throw (Error) e;
+            }
+            return positions.get();
+        }
+    }
+
+    private final class Worker {
+        private final FileChannel channel;
+        private final SimpleGomokuEngine engine = new SimpleGomokuEngine(rule);
+        private final long[] initial = engine.snapshot();
+        private final TranspositionTable table = new TranspositionTable(1<<18);
+        private GomokuSearch search;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_RECORDS*RECORD).order(ByteOrder.LITTLE_ENDIAN);
+        /**
+         * 本局各记录在缓冲区中的位置与当时的下一手一方，对局结束后补写胜负
+         */
+        private final int[] pending = new int[CELLS];
+        private final int[] pendingSide = new int[CELLS];
+        private final int[] rows = new int[N];
+        private final int[] forbidden = new int[N];
+        private final int[] candidates = new int[CELLS];
+        private long random;
+        private int dotCount;
+
+        Worker(FileChannel channel){
+            this.channel = channel;
+        }
+
+        long run(AtomicLong next, long games) throws IOException {
+            long positions = 0;
+            while (true){
+                long game = next.getAndIncrement();
+                if(game>=games) break;
+                positions += play(game);
+            }
+            flush();
+            return positions;
+        }
+
+        private int play(long game) throws IOException {
+            engine.restore(initial);
+            //置换表与历史表每局重新开始，第game局只取决于seed+game，与由哪个线程下无关
+            table.clear();
+            search = new GomokuSearch(engine, table);
+            search.setMaxDepth(depth);
+            random = (seed+game)*0x9E3779B97F4A7C15L | 1;
+            int count = 0;
+            while (engine.status()!=SimpleGomokuEngine.END){
+                if(engine.status()!=SimpleGomokuEngine.MOVE){
+                    if(!opening()) break;
+                    continue;
+                }
+                int move = engine.moveCount()<randomPlies ? randomMove() : search.search(60_000);
+                if(move<0) break;
+                //一局的记录要在同一缓冲区中补写胜负，放不下时先写出
+                if(count==0 && buffer.remaining()<CELLS*RECORD) flush();
+                pending[count] = buffer.position();
+                pendingSide[count] = engine.turn();
+                count++;
+                write(move);
+                engine.move(move%N, move/N, engine.nextColor());
+            }
+            //没有结束(满盘或无处可走)记为和
+            int result = engine.status()==SimpleGomokuEngine.END ? engine.result() : 2;
+            for(int i = 0 ; i < count ; i ++){
+                int outcome = result==2 ? 0 : result==pendingSide[i] ? 1 : -1;
+                buffer.put(pending[i]+OUTCOME, (byte) outcome);
+            }
+            return count;
+        }
+
+        private void write(int move){
+            int base = buffer.position();
+            for(int y = 0 ; y < N ; y ++){
+                int black = engine.rowBits(y, SimpleGomokuEngine.BLACK);
+                int white = engine.rowBits(y, SimpleGomokuEngine.WHITE);
+                for(int x = 0 ; x < N ; x ++){
+                    buffer.put(base+BLACK_PLANE+y*N+x, (byte) (black>>>x & 1));
+                    buffer.put(base+WHITE_PLANE+y*N+x, (byte) (white>>>x & 1));
+                }
+            }
+            boolean any = rule>0 && engine.forbiddenPoints(rows)>0;
+            for(int y = 0 ; y < N ; y ++){
+                int row = any ? rows[y] : 0;
+                for(int x = 0 ; x < N ; x ++){
+                    buffer.put(base+FORBIDDEN_PLANE+y*N+x, (byte) (row>>>x & 1));
+                }
+            }
+            buffer.put(base+SIDE, (byte) engine.nextColor());
+            buffer.put(base+OUTCOME, (byte) 0);
+            buffer.put(base+RULE, (byte) rule);
+            buffer.putShort(base+MOVE, (short) move);
+            buffer.position(base+RECORD);
+        }
+
+        /**
+         * 山口规则开局阶段的随机选择：打点1或2个，随机交换，随机打点与选择
+         */
+        private boolean opening(){
+            switch (engine.status()){
+                case SimpleGomokuEngine.ANN:
+                    dotCount = 1+nextInt(2);
+                    return engine.ann(dotCount);
+                case SimpleGomokuEngine.SWAP:
+                    return engine.swap(nextInt(2)==1);
+                case SimpleGomokuEngine.DOT:
+                    int[] dots = new int[dotCount];
+                    for(int k = 0 ; k < 1000 ; k ++){
+                        for(int i = 0 ; i < dots.length ; i ++) dots[i] = randomMove();
+                        if(engine.dot(dots)) return true;
+                    }
+                    return false;
+                case SimpleGomokuEngine.CHOICE:
+                    return engine.choice(nextInt(dotCount));
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * 已有棋子一格内的随机空点，空棋盘为天元；禁手规则下黑棋避开禁手点
+         */
+        private int randomMove(){
+            if(!engine.nearby(1, rows)) return N/2*N+N/2;
+            if(engine.nextColor()==SimpleGomokuEngine.BLACK && rule>0){
+                if(engine.forbiddenPoints(forbidden)>0){
+                    for(int y = 0 ; y < N ; y ++) rows[y] &= ~forbidden[y];
+                }
+            }
+            int count = 0;
+            for(int y = 0 ; y < N ; y ++){
+                int row = rows[y];
+                while (row!=0){
+                    int x = Integer.numberOfTrailingZeros(row);
+                    row &= row-1;
+                    candidates[count++] = y*N+x;
+                }
+            }
+            return count==0 ? -1 : candidates[nextInt(count)];
+        }
+
+        private int nextInt(int bound){
+            //xorshift，与MonteCarloSearch相同
+            random ^= random<<13;
+            random ^= random>>>7;
+            random ^= random<<17;
+            return (int) ((random>>>33)%bound);
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            synchronized (channel){
+                while (buffer.hasRemaining()) channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if(args.length<1){
+            System.err.println("usage: SelfPlayGenerator file [-games n] [-threads n] [-rule r] [-depth d] [-random n] [-seed s]");
+            return;
+        }
+        long games = 1000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int rule = 1;
+        int depth = 4;
+        int randomPlies = 4;
+        long seed = 1;
+        for(int i = 1 ; i+1 < args.length ; i += 2){
+            switch (args[i]){
+                case "-games": games = Long.parseLong(args[i+1]); break;
+                case "-threads": threads = Integer.parseInt(args[i+1]); break;
+                case "-rule": rule = Integer.parseInt(args[i+1]); break;
+                case "-depth": depth = Integer.parseInt(args[i+1]); break;
+                case "-random": randomPlies = Integer.parseInt(args[i+1]); break;
+                case "-seed": seed = Long.parseLong(args[i+1]); break;
+                default: throw new IllegalArgumentException("unknown option "+args[i]);
+            }
+        }
+        SelfPlayGenerator generator = new SelfPlayGenerator(rule);
+        generator.setDepth(depth);
+        generator.setRandomPlies(randomPlies);
+        generator.setSeed(seed);
+        long start = System.nanoTime();
+        long positions = generator.generate(Path.of(args[0]), games, threads);
+        double seconds = (System.nanoTime()-start)/1e9;
+        System.err.printf("games=%d positions=%d positions/hour=%.0f%n", games, positions, positions/seconds*3600);
+    }
+}
@@ -0,0 +1,121 @@
+package com.xiaoming.gomoku.engine;
+
+import java.util.Arrays;
+
+/**
+ * 按颜色统计棋盘上各Shape的数目，以(棋子,方向)计数：一条活三上的三颗子在该方向各计一次
+ * 落子或悔棋后调用update()，只重新检查经过该点的四条线上的棋子，静态评估是常数时间的加权和
+ */
+public class ShapeCounter {
+
+    private static final int N = SimpleGomokuEngine.boardSize;
+    private static final int SHAPES = SimpleGomokuEngine.Shape.values().length;
+    private static final int COLOR_SHIFT = SHAPES;
+
+    /**
+     * 前4个方向与其反向，序数&3为所在的线
+     */
+    private static final SimpleGomokuEngine.Direction[] DIRECTIONS = SimpleGomokuEngine.Direction.values();
+
+    private final SimpleGomokuEngine engine;
+    /**
+     * 每个点每个方向上的当前记录：颜色<<COLOR_SHIFT | 棋型掩码，空点为0
+     */
+    private final char[] cells = new char[N*N*4];
+    private final int[] counts = new int[2*SHAPES];
+
+    public ShapeCounter(SimpleGomokuEngine engine){
+        this.engine = engine;
+        reset();
+    }
+
+    /**
+     * 按当前棋盘重新统计
+     */
+    public void reset(){
+        Arrays.fill(cells, (char) 0);
+        Arrays.fill(counts, 0);
+        for(int y = 0 ; y < N ; y ++){
+            for(int c = SimpleGomokuEngine.BLACK ; c <= SimpleGomokuEngine.WHITE ; c ++){
+                int row = engine.rowBits(y, c);
+                while (row!=0){
+                    int x = Integer.numberOfTrailingZeros(row);
+                    row &= row-1;
+                    for(int d = 0 ; d < 4 ; d ++){
+                        set((y*N+x)*4+d, c, engine.getShape(x, y, d, c));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * (x,y)处落子或撤销后调用，重新检查经过该点的四条线，每个方向的范围与引擎的reach()相同
+     */
+    public void update(int x, int y){
+        check(x, y, 0);
+        check(x, y, 1);
+        check(x, y, 2);
+        check(x, y, 3);
+        for(SimpleGomokuEngine.Direction dir : DIRECTIONS){
+            int[] delta = dir.delta();
+            int d = dir.ordinal() & 3;
+            int reach = engine.reach(x, y, dir);
+            for(int k = 1 ; k <= reach ; k ++){
+                check(x + k*delta[0], y + k*delta[1], d);
+            }
+        }
+    }
+
+    /**
+     * color方shape的数目
+     */
+    public int count(int color, SimpleGomokuEngine.Shape shape){
+        return counts[(color-1)*SHAPES+shape.ordinal()];
+    }
+
+    /**
+     * color方各棋型数目按weights(Shape序数)的加权和
+     */
+    public int score(int color, int[] weights){
+        int base = (color-1)*SHAPES;
+        int score = 0;
+        for(int i = 0 ; i < SHAPES ; i ++){
+            score += weights[i]*counts[base+i];
+        }
+        return score;
+    }
+
+    /**
+     * 重新记录(x,y)在方向d上的棋型
+     * @return 是否有子
+     */
+    private boolean check(int x, int y, int d){
+        int color = engine.colorAt(x, y);
+        int i = (y*N+x)*4+d;
+        if(color==SimpleGomokuEngine.EMPTY){
+            if(cells[i]!=0) set(i, 0, 0);
+            return false;
+        }
+        set(i, color, engine.getShape(x, y, d, color));
+        return true;
+    }
+
+    private void set(int i, int color, int mask){
+        int value = color==SimpleGomokuEngine.EMPTY ? 0 : color<<COLOR_SHIFT | mask;
+        int old = cells[i];
+        if(old==value) return;
+        if(old!=0) add(old>>>COLOR_SHIFT, old & ((1<<SHAPES)-1), -1);
+        if(value!=0) add(color, mask, 1);
+        cells[i] = (char) value;
+    }
+
+    private void add(int color, int mask, int delta){
+        int base = (color-1)*SHAPES;
+        while (mask!=0){
+            counts[base+Integer.numberOfTrailingZeros(mask)] += delta;
+            mask &= mask-1;
+        }
+    }
+
+}
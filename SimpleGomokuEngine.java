@@ -1,5 +1,6 @@
 package com.xiaoming.gomoku.engine;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -18,18 +19,18 @@ public class SimpleGomokuEngine {
         DOWN_LEFT(new int[]{-1, 1}),
         UP_LEFT(new int[]{-1, -1});
         private final int[] delta;
+        /**
+         * values()每次都会复制数组，缓存一份
+         */
+        private static final Direction[] VALUES = values();
 
         Direction(int[] delta) {
             this.delta = delta;
         }
 
         public static Direction of(int d){
-            for(Direction di: Direction.values()){
-                if(di.ordinal()==d){
-                    return di;
-                }
-            }
-            return null;
+            if(d<0 || d>=VALUES.length) return null;
+            return VALUES[d];
         }
 
         public int[] delta() {
@@ -43,44 +44,120 @@ public class SimpleGomokuEngine {
         }
     }
 
-    public class Node{
-        public int x;
-        public int y;
-        public int color;
+    /**
+     * 位棋盘：每种颜色按行、列、主对角线(DOWN_RIGHT)、副对角线(UP_RIGHT)各存一份位图，
+     * 每条线占16位，4条线打包为一个long，落子和棋型判断只做移位与掩码运算
+     */
+    public static class Board {
+        public final int boardSize;
         /**
-         * 相邻的8个方向
+         * 每种颜色占用的long数目
          */
-        public final Node[] adjacent = new Node[8];
-
-        public Node(int x, int y){
-            this.x = x;
-            this.y = y;
-        }
-    }
+        private final int stride;
+        /**
+         * 黑棋在前白棋在后
+         */
+        private final long[] lines;
 
-    public class Board {
-        public final Node[][] matrix;
-        public final int boardSize;
         public Board(int boardSize){
+            if(boardSize<1 || boardSize>16) throw new IllegalArgumentException("boardSize "+boardSize);
             this.boardSize = boardSize;
-            matrix = new Node[boardSize][boardSize];
-            for(int y = 0; y< boardSize ; y++){
-                for(int x = 0 ; x< boardSize ; x++){
-                    matrix[y][x] = new Node(x,y);
-                }
-            }
-            for(Direction d: Direction.values()){
-                int[] delta = d.delta();
-                for(int y = 0; y< boardSize ; y++){
-                    for(int x = 0 ; x< boardSize ; x++){
-                        int adjX = x + delta[0];
-                        int adjY = y + delta[1];
-                        if (adjX >= 0 && adjX < boardSize && adjY >= 0 && adjY < boardSize)
-                            matrix[y][x].adjacent[d.ordinal()] = matrix[adjY][adjX];
+            //行 列 各boardSize条，两种对角线各2*boardSize-1条
+            this.stride = (6*boardSize-2+3)>>2;
+            this.lines = new long[stride*2];
+        }
+
+        public int color(int x, int y){
+            int bit = 1<<x;
+            if((lane(BLACK, y) & bit)!=0) return BLACK;
+            if((lane(WHITE, y) & bit)!=0) return WHITE;
+            return EMPTY;
+        }
+
+        /**
+         * 放置或清除(color为EMPTY)棋子
+         */
+        public void put(int x, int y, int color){
+            for(int c = BLACK ; c <= WHITE ; c ++){
+                for(int d = 0 ; d < 4 ; d ++){
+                    int lane = laneIndex(d,x,y);
+                    int idx = (c-1)*stride + (lane>>2);
+                    long bit = 1L<<(((lane&3)<<4) + offset(d,x,y));
+                    if(c==color){
+                        lines[idx] |= bit;
+                    }else{
+                        lines[idx] &= ~bit;
                     }
                 }
             }
         }
+
+        /**
+         * 过(x,y)沿方向d(0~3,与Direction前4个对应)的线上color的位图，低位对应offset为0的一端
+         */
+        public int line(int color, int d, int x, int y){
+            return lane(color, laneIndex(d,x,y));
+        }
+
+        /**
+         * (x,y)在方向d所在线上的位序
+         */
+        public int offset(int d, int x, int y){
+            switch (d){
+                case 0: return y;
+                case 1: return x;
+                case 2: return x - Math.max(0, x+y-boardSize+1);
+                default: return Math.min(x, y);
+            }
+        }
+
+        /**
+         * 方向d上过(x,y)的线长度
+         */
+        public int length(int d, int x, int y){
+            switch (d){
+                case 0:
+                case 1: return boardSize;
+                case 2: return x+y<boardSize ? x+y+1 : 2*boardSize-1-x-y;
+                default: return boardSize - Math.abs(x-y);
+            }
+        }
+
+        private int laneIndex(int d, int x, int y){
+            switch (d){
+                case 0: return boardSize + x;
+                case 1: return y;
+                case 2: return 4*boardSize - 1 + x + y;
+                default: return 3*boardSize - 1 + x - y;
+            }
+        }
+
+        public void clear(){
+            Arrays.fill(lines, 0);
+        }
+
+        public void copyFrom(Board other){
+            System.arraycopy(other.lines, 0, lines, 0, lines.length);
+        }
+
+        /**
+         * 位图占用的long数目
+         */
+        public int words(){
+            return lines.length;
+        }
+
+        public void save(long[] buf, int offset){
+            System.arraycopy(lines, 0, buf, offset, lines.length);
+        }
+
+        public void load(long[] buf, int offset){
+            System.arraycopy(buf, offset, lines, 0, lines.length);
+        }
+
+        private int lane(int color, int lane){
+            return (int) (lines[(color-1)*stride + (lane>>2)] >>> ((lane&3)<<4)) & 0xFFFF;
+        }
     }
 
     public enum Shape{
@@ -110,39 +187,26 @@ public class SimpleGomokuEngine {
             if(len==1) return ONE;
             return null;
         }
-    }
 
-    public class Operation {
-        public int color;
-        public int status;
-        public int data;
-        public int x;
-        public int y;
+        /**
+         * 棋型掩码，同一方向上的多个棋型按位或
+         */
+        public int mask(){
+            return 1<<ordinal();
+        }
+
+        public static int maskOf(int len,int close){
+            Shape shape = ofLength(len, close);
+            return shape==null ? 0 : shape.mask();
+        }
     }
 
-    public class MoveResult{
+    public static class MoveResult{
         public boolean success;
         public boolean end;
         public int rule;
     }
 
-    public class Point{
-        public double x;
-        public double y;
-        Point(double x,double y){ this.x = x; this.y = y;}
-
-        @Override
-        public boolean equals(Object p){
-            if(this==p) return true;
-            if(p==null) return false;
-            if(p instanceof Point){
-                Point o = (Point) p;
-                return o.x == x && o.y == y;
-            }
-            return false;
-        }
-    }
-
     public static final int boardSize = 15;
     private Board board;
     public static final int WHITE = 2;
@@ -175,24 +239,375 @@ public class SimpleGomokuEngine {
      */
     public static final  int CONNECT_LONG = 6;
 
+    /**
+     * move()返回值的编码
+     */
+    public static final int MOVE_SUCCESS = 1;
+    public static final int MOVE_END = 2;
+    public static final int MOVE_RULE_SHIFT = 2;
+    /**
+     * 操作无落点(虚手、声明、交换、打点)
+     */
+    private static final int NO_POS = 0xFF;
+
     //结束的结果 0 side0 胜 1 side1 胜 2 和
     private int result;
 
-    private List<Operation> history;
+    /**
+     * 操作记录，每个操作编码为一个int，见operation()
+     */
+    private int[] history;
+    private int historySize;
+    /**
+     * 落子(含虚手)的数目
+     */
+    private int moveCount;
 
     private int nextColor;
 
+    private final MoveResult moveResult = new MoveResult();
+
     private boolean swap;
     private int dotNumber;
+    /**
+     * load()读到的黑棋第一次违反禁手的判断结果
+     */
+    private int violation;
 
     private int[] dots;
+    /**
+     * 打点阶段的对称等价类，见dotClasses()，进入打点阶段后第一次检查时计算
+     */
+    private short[] dotClasses;
+    /**
+     * 棋盘的8个对称变换(旋转与翻转)，(x,y)变为(t0*x+t1*y, t2*x+t3*y)，第0个为恒等变换
+     */
+    private static final int[][] SYMMETRIES = {
+            {1, 0, 0, 1}, {0, -1, 1, 0}, {-1, 0, 0, -1}, {0, 1, -1, 0},
+            {-1, 0, 0, 1}, {1, 0, 0, -1}, {0, 1, 1, 0}, {0, -1, -1, 0}};
+    public static final int SYMMETRY_COUNT = 8;
+    /**
+     * 各对称变换的逆变换序号
+     */
+    private static final int[] INVERSE_SYMMETRY = {0, 3, 2, 1, 4, 5, 6, 7};
+
+    /**
+     * 棋子部分的Zobrist散列，落子时增量更新
+     */
+    private long stoneHash;
+
+    /**
+     * 黑棋禁手点位图，按行存放，第x位对应(x,y)；forbiddenChanged为上次判断以来有变化的点
+     */
+    private final int[] forbidden = new int[boardSize];
+    private final int[] forbiddenChanged = new int[boardSize];
+    /**
+     * forbiddenPoints()中需要重新判断的点，临时使用
+     */
+    private final int[] forbiddenDirty = new int[boardSize];
+
+    /**
+     * 快照中棋盘之后的固定字段：状态 散列 操作数 打点数
+     */
+    private static final int SNAPSHOT_HEADER = 4;
+    /**
+     * 快照中禁手点位图占的long数，每行16位禁手点与16位有变化的点，两行一个long
+     */
+    private static final int FORBIDDEN_WORDS = (boardSize+1)/2;
+
+    private static final long[][] ZOBRIST = new long[2][boardSize*boardSize];
+    private static final long ZOBRIST_WHITE = splitMix(-1);
+    private static final long[] ZOBRIST_STATUS = new long[END+1];
+
+    static {
+        //固定种子，不同JVM间散列一致，可以持久化
+        for(int c = 0 ; c < 2 ; c ++){
+            for(int i = 0 ; i < boardSize*boardSize ; i ++){
+                ZOBRIST[c][i] = splitMix(c*boardSize*boardSize+i);
+            }
+        }
+        for(int i = 0 ; i <= END ; i ++){
+            ZOBRIST_STATUS[i] = splitMix(-2-i);
+        }
+    }
+
+    static long splitMix(long seed){
+        long z = seed * 0x9E3779B97F4A7C15L + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
     public SimpleGomokuEngine(int rule){
         this.board = new Board(15);
         this.rule = rule;
         this.status = MOVE;
         this.turn = 0;
         this.nextColor = BLACK;
-        this.history=new ArrayList<>();
+        this.history=new int[boardSize*boardSize+8];
+    }
+
+    private SimpleGomokuEngine(SimpleGomokuEngine other){
+        this.board = new Board(boardSize);
+        this.board.copyFrom(other.board);
+        this.rule = other.rule;
+        this.history = Arrays.copyOf(other.history, other.history.length);
+        this.historySize = other.historySize;
+        this.moveCount = other.moveCount;
+        this.turn = other.turn;
+        this.status = other.status;
+        this.result = other.result;
+        this.nextColor = other.nextColor;
+        this.swap = other.swap;
+        this.dotNumber = other.dotNumber;
+        this.violation = other.violation;
+        this.dots = other.dots==null ? null : other.dots.clone();
+        //计算后不再修改，可以共用
+        this.dotClasses = other.dotClasses;
+        this.stoneHash = other.stoneHash;
+        System.arraycopy(other.forbidden, 0, this.forbidden, 0, boardSize);
+        System.arraycopy(other.forbiddenChanged, 0, this.forbiddenChanged, 0, boardSize);
+    }
+
+    /**
+     * 复制当前局面与操作记录，副本与原引擎互不影响
+     */
+    public SimpleGomokuEngine copy(){
+        return new SimpleGomokuEngine(this);
+    }
+
+    /**
+     * snapshot()需要的long数目，随操作记录增长
+     */
+    public int snapshotSize(){
+        return board.words() + SNAPSHOT_HEADER + FORBIDDEN_WORDS + (dots==null ? 0 : dots.length) + (historySize+1)/2;
+    }
+
+    /**
+     * 把局面与操作记录保存为扁平的long数组，可以用restore()恢复到任意同规则的引擎
+     */
+    public long[] snapshot(){
+        long[] buf = new long[snapshotSize()];
+        snapshot(buf);
+        return buf;
+    }
+
+    /**
+     * 保存到调用方提供的数组，长度至少为snapshotSize()，用于反复快照时避免分配
+     * @return 写入的long数目
+     */
+    public int snapshot(long[] buf){
+        int i = board.words();
+        board.save(buf, 0);
+        buf[i++] = status | turn<<3 | nextColor<<4 | result<<6 | (swap ? 1 : 0)<<8 | rule<<9 | (long) dotNumber<<16;
+        buf[i++] = stoneHash;
+        buf[i++] = historySize | (long) moveCount<<32;
+        buf[i++] = dots==null ? -1 : dots.length;
+        for(int y = 0 ; y < boardSize ; y += 2){
+            buf[i++] = forbiddenWord(y) | (y+1<boardSize ? (long) forbiddenWord(y+1)<<32 : 0);
+        }
+        if(dots!=null){
+            for(int d : dots) buf[i++] = d;
+        }
+        for(int h = 0 ; h < historySize ; h += 2){
+            buf[i++] = (history[h] & 0xFFFFFFFFL) | (h+1<historySize ? (long) history[h+1]<<32 : 0);
+        }
+        return i;
+    }
+
+    /**
+     * 恢复snapshot()保存的局面
+     */
+    public void restore(long[] buf){
+        int i = board.words();
+        board.load(buf, 0);
+        dotClasses = null;
+        long state = buf[i++];
+        status = (int) state & 0b111;
+        turn = (int) (state>>>3) & 1;
+        nextColor = (int) (state>>>4) & 0b11;
+        result = (int) (state>>>6) & 0b11;
+        swap = (state>>>8 & 1)!=0;
+        rule = (int) (state>>>9) & 0b11;
+        dotNumber = (int) (state>>>16);
+        stoneHash = buf[i++];
+        long sizes = buf[i++];
+        historySize = (int) sizes;
+        moveCount = (int) (sizes>>>32);
+        int dotLength = (int) buf[i++];
+        for(int y = 0 ; y < boardSize ; y += 2){
+            long v = buf[i++];
+            forbidden[y] = (int) v & 0xFFFF;
+            forbiddenChanged[y] = (int) (v>>>16) & 0xFFFF;
+            if(y+1<boardSize){
+                forbidden[y+1] = (int) (v>>>32) & 0xFFFF;
+                forbiddenChanged[y+1] = (int) (v>>>48) & 0xFFFF;
+            }
+        }
+        if(dotLength<0){
+            dots = null;
+        }else{
+            //dot()保存的是调用方的数组，不能原地覆盖
+            dots = new int[dotLength];
+            for(int d = 0 ; d < dotLength ; d ++) dots[d] = (int) buf[i++];
+        }
+        if(history.length<historySize){
+            history = new int[historySize*2];
+        }
+        for(int h = 0 ; h < historySize ; h += 2){
+            long v = buf[i++];
+            history[h] = (int) v;
+            if(h+1<historySize) history[h+1] = (int) (v>>>32);
+        }
+    }
+
+    /**
+     * 棋谱格式版本，写在棋谱第一个字节的高4位，低4位为规则
+     */
+    private static final int RECORD_VERSION = 1;
+    /**
+     * 棋谱中的特殊字节：认输(side0 side1)与虚手，落点、打点数量、选择序号都小于这些值
+     */
+    private static final int RECORD_RESIGN = 0xFD;
+    private static final int RECORD_PASS = NO_POS;
+
+    /**
+     * 把全部操作编码为紧凑的二进制棋谱，约每手一个字节
+     * 第一个字节为版本与规则，之后每个操作按操作时的棋局状态解释：
+     * 落子为落点(y*boardSize+x)，虚手为0xFF；声明为打点数量；交换为1或0；打点为各打点的落点；选择为打点序号；
+     * 任何阶段的0xFD、0xFE为side0、side1认输
+     */
+    public byte[] record(){
+        int size = 1;
+        for(int h = 0 ; h < historySize ; h ++){
+            size += operationStatus(history[h])==DOT ? dots.length : 1;
+        }
+        byte[] buf = new byte[size];
+        int i = 0;
+        buf[i++] = (byte) (RECORD_VERSION<<4 | rule);
+        for(int h = 0 ; h < historySize ; h ++){
+            int op = history[h];
+            int data = op>>>13 & 0xFF;
+            switch (operationStatus(op)){
+                case MOVE:
+                    buf[i++] = (byte) op;
+                    break;
+                case DOT:
+                    for(int d : dots) buf[i++] = (byte) d;
+                    break;
+                case END:
+                    buf[i++] = (byte) (RECORD_RESIGN+data);
+                    break;
+                case ANN:
+                    if(data>=RECORD_RESIGN) throw new IllegalStateException("dot number "+data+" can not be recorded");
+                    buf[i++] = (byte) data;
+                    break;
+                default:
+                    //SWAP CHOICE
+                    buf[i++] = (byte) data;
+            }
+        }
+        return buf;
+    }
+
+    public static SimpleGomokuEngine replay(byte[] record){
+        return replay(ByteBuffer.wrap(record));
+    }
+
+    /**
+     * 从record()写出的棋谱重建引擎，读取buf从position到limit的字节，不改变buf的position
+     */
+    public static SimpleGomokuEngine replay(ByteBuffer buf){
+        SimpleGomokuEngine engine = new SimpleGomokuEngine(0);
+        engine.load(buf);
+        return engine;
+    }
+
+    /**
+     * 把本引擎重置为棋谱中规则的初始局面后重放棋谱，批量重放时复用同一个引擎
+     * 读取buf从position到limit的字节，不改变buf的position
+     * @return 黑棋第一次违反禁手的判断结果(FORBIDDEN_33 FORBIDDEN_44 CONNECT_LONG)，没有时为0；抛出异常时用violation()取得
+     */
+    public int load(ByteBuffer buf){
+        violation = 0;
+        int i = buf.position();
+        int end = buf.limit();
+        if(i>=end) throw new IllegalArgumentException("empty record");
+        int header = buf.get(i++) & 0xFF;
+        if(header>>>4!=RECORD_VERSION || (header & 0xF)>2){
+            throw new IllegalArgumentException("bad record header "+header);
+        }
+        reset(header & 0xF);
+        while (i<end){
+            int at = i;
+            int b = buf.get(i++) & 0xFF;
+            boolean ok;
+            if(b==RECORD_RESIGN || b==RECORD_RESIGN+1){
+                ok = resign(b-RECORD_RESIGN);
+            }else{
+                switch (status){
+                    case MOVE:
+                        if(b==RECORD_PASS){
+                            ok = pass();
+                            break;
+                        }
+                        int code = b<boardSize*boardSize ? move(b%boardSize, b/boardSize, nextColor) : 0;
+                        ok = code>0;
+                        int r = code>>>MOVE_RULE_SHIFT;
+                        if(ok && violation==0 && (r==FORBIDDEN_33 || r==FORBIDDEN_44 || r==CONNECT_LONG)) violation = r;
+                        break;
+                    case ANN:
+                        ok = ann(b);
+                        break;
+                    case SWAP:
+                        ok = b<=1 && swap(b==1);
+                        break;
+                    case DOT:
+                        int[] dots = new int[dotNumber];
+                        if(end-at<dots.length) throw new IllegalArgumentException("truncated record");
+                        i = at;
+                        for(int d = 0 ; d < dots.length ; d ++) dots[d] = buf.get(i++) & 0xFF;
+                        ok = dot(dots);
+                        break;
+                    case CHOICE:
+                        ok = choice(b);
+                        break;
+                    default:
+                        ok = false;
+                }
+            }
+            if(!ok) throw new IllegalArgumentException("illegal operation at byte "+(at-buf.position()));
+        }
+        return violation;
+    }
+
+    /**
+     * 最近一次load()中黑棋第一次违反禁手的判断结果，没有时为0
+     * load()因之后的字节抛出异常时仍保留，按宽松规则写出的棋谱在禁手处结束后继续落子，就是这种情况
+     */
+    public int violation(){
+        return violation;
+    }
+
+    /**
+     * 回到rule规则下的空棋盘
+     */
+    private void reset(int rule){
+        board.clear();
+        this.rule = rule;
+        status = MOVE;
+        turn = 0;
+        nextColor = BLACK;
+        result = 0;
+        historySize = 0;
+        moveCount = 0;
+        swap = false;
+        dotNumber = 0;
+        dots = null;
+        dotClasses = null;
+        stoneHash = 0;
+        Arrays.fill(forbidden, 0);
+        Arrays.fill(forbiddenChanged, 0);
     }
 
     public boolean pass(){
@@ -200,68 +615,87 @@ public class SimpleGomokuEngine {
         if(rule>1){
             if(moveSize()<4) return false;
         }
-        Operation operation = new Operation();
-        operation.color = nextColor;
-        operation.status = MOVE;
-        history.add(operation);
+        record(operation(MOVE, nextColor, NO_POS, 0));
         checkNext();
         return true;
     }
 
+    /**
+     * 落子，返回的结果对象由引擎持有，下一次落子时会被覆盖
+     */
     public MoveResult play(int x, int y,int color){
-        if(status!=MOVE || color!=nextColor) return null;
-        MoveResult res = new MoveResult();
-        res.end = false;
+        int code = move(x, y, color);
+        if(code<0) return null;
+        MoveResult res = moveResult;
+        res.success = (code&MOVE_SUCCESS)!=0;
+        res.end = (code&MOVE_END)!=0;
+        res.rule = code>>>MOVE_RULE_SHIFT;
+        return res;
+    }
+
+    /**
+     * 落子，结果编码为int: MOVE_SUCCESS位 MOVE_END位 以及左移MOVE_RULE_SHIFT位的禁手判断结果，
+     * 当前不能落子或颜色不符时返回-1
+     */
+    public int move(int x, int y,int color){
+        if(!EngineMetrics.ENABLED) return place(x, y, color);
+        long start = System.nanoTime();
+        int code = place(x, y, color);
+        EngineMetrics.move(x, y, color, code, System.nanoTime()-start);
+        return code;
+    }
+
+    private int place(int x, int y,int color){
+        if(status!=MOVE || color!=nextColor) return -1;
         if(x<0||y<0||x>boardSize-1||y>boardSize-1){
-            res.success = false;
-            return res;
-        }
-        Operation operation = new Operation();
-        operation.x = x;
-        operation.y = y;
-        operation.color = color;
-        operation.status = MOVE;
-        Node node = board.matrix[y][x];
-        if(node.color!=EMPTY){
-            res.success = false;
-            return res;
+            return 0;
+        }
+        if(board.color(x,y)!=EMPTY){
+            return 0;
         }
         if(color!=BLACK && color!=WHITE) {
-            res.success = false;
-            return res;
+            return 0;
         }
-        board.matrix[y][x].color = color;
+        //先记录，保存落子前的棋局状态
+        record(operation(MOVE, color, y*boardSize+x, 0));
+        board.put(x,y,color);
+        stoneHash ^= ZOBRIST[color-1][y*boardSize+x];
+        touch(x, y);
+        int code = MOVE_SUCCESS;
         int i = checkRule(x, y);
         if(i==CONNECT5){
-            res.success = true;
-            res.end = true;
+            code |= MOVE_END;
             status = END;
             result = turn;
         }else{
-            res.success = true;
             if(rule>0){
                 if(color==BLACK){
-                    res.rule = i;
+                    code |= i<<MOVE_RULE_SHIFT;
                     if(i==FORBIDDEN_44 || i==FORBIDDEN_33 || i==CONNECT_LONG){
-                        res.end = true;
+                        code |= MOVE_END;
                         status = END;
                         result = oppositeSide(turn);
                     }
                 }
             }
         }
-        history.add(operation);
+        if(EngineMetrics.ENABLED && status==END) EngineMetrics.transition(MOVE, END);
         checkNext();
-        return res;
+        return code;
     }
 
+    /**
+     * 声明打点数量，n为1到棋盘空点数，超出时返回false(棋谱中打点数量只占一个字节，也不能打出0个点)
+     */
     public boolean ann(int n){
         if(status!=ANN) return false;
+        int empty = boardSize*boardSize;
+        for(int y = 0 ; y < boardSize ; y ++){
+            empty -= Integer.bitCount(rowBits(y, BLACK) | rowBits(y, WHITE));
+        }
+        if(n<1 || n>empty) return false;
         this.dotNumber = n;
-        Operation operation = new Operation();
-        operation.data = n;
-        operation.status = ANN;
-        history.add(operation);
+        record(operation(ANN, EMPTY, NO_POS, n));
         checkNext();
         return true;
     }
@@ -269,9 +703,7 @@ public class SimpleGomokuEngine {
     public boolean swap(boolean swap){
         if(status!= SWAP) return false;
         this.swap = swap;
-        Operation operation = new Operation();
-        operation.status = SWAP;
-        history.add(operation);
+        record(operation(SWAP, EMPTY, NO_POS, swap ? 1 : 0));
         checkNext();
         return true;
     }
@@ -284,9 +716,7 @@ public class SimpleGomokuEngine {
         boolean b = checkDot(dots);
         if(b){
             this.dots = dots;
-            Operation operation = new Operation();
-            operation.status = DOT;
-            history.add(operation);
+            record(operation(DOT, EMPTY, NO_POS, 0));
             checkNext();
             return true;
         }
@@ -295,174 +725,202 @@ public class SimpleGomokuEngine {
 
     public boolean choice(int idx){
         if(status!=CHOICE) return false;
-        if(idx<0||idx>dots.length) return false;
+        if(idx<0||idx>=dots.length) return false;
         int pos = dots[idx];
         int x = pos%boardSize;
         int y = ~~(pos/boardSize);
-        board.matrix[y][x].color = BLACK;
-        Operation operation = new Operation();
-        operation.x = x;
-        operation.y = y;
-        operation.status = CHOICE;
-        history.add(operation);
+        board.put(x,y,BLACK);
+        stoneHash ^= ZOBRIST[BLACK-1][pos];
+        touch(x, y);
+        record(operation(CHOICE, EMPTY, pos, idx));
         checkNext();
         return true;
     }
 
     /**
-     * 检测打点是否合法
-     * @param dots
-     * @return
+     * 认输，side为认输的一方(0/1)，任何未结束的阶段都可以认输
+     */
+    public boolean resign(int side){
+        if(status==END || (side!=0 && side!=1)) return false;
+        record(operation(END, EMPTY, NO_POS, side));
+        if(EngineMetrics.ENABLED) EngineMetrics.transition(status, END);
+        status = END;
+        result = oppositeSide(side);
+        return true;
+    }
+
+    /**
+     * 检测打点是否合法：点在棋盘内且为空，任意两点不在开局四子的同一对称等价类中
      */
-    private  boolean checkDot(int[] dots){
-        List<Point> all = new ArrayList<>();
+    private boolean checkDot(int[] dots){
+        if(dotClasses==null) dotClasses = dotClasses();
+        long[] seen = new long[(boardSize*boardSize+63)/64];
         for(int i = 0 ; i < dotNumber ; i++){
             int pos = dots[i];
-            int x = pos%boardSize;
-            int y = ~~(pos/boardSize);
-            if( board.matrix[y][x].color != EMPTY) return false;
-            all.add(new Point(x,y));
-        }
-        List<Point> bList = new ArrayList<>();
-        bList.add(new Point(history.get(0).x,history.get(0).y));
-        bList.add(new Point(history.get(2).x,history.get(2).y));
-        List<Point> wList = new ArrayList<>();
-        wList.add(new Point(history.get(1).x,history.get(1).y));
-        wList.add(new Point(history.get(5).x,history.get(5).y));
-        bList.sort((a,b)->(Double.valueOf(a.x-b.x).intValue()));
-        wList.sort((a,b)->(Double.valueOf(a.x-b.x).intValue()));
-        List<List<Point>> symLists = new ArrayList<>();
-        for(int i = 0; i< dotNumber; i ++){
-            symLists.add(symmetrically(all.get(i),bList,wList));
-        }
-        for(int i = 0 ; i < dotNumber ; i ++){
-            for(int j = 0 ; j < dotNumber ; j ++){
-                if(i==j) continue;
-                if(symLists.get(i).contains(all.get(j))){
-                    return false;
-                }
-            }
+            if(pos<0 || pos>=boardSize*boardSize) return false;
+            if(board.color(pos%boardSize, pos/boardSize)!=EMPTY) return false;
+            int c = dotClasses[pos];
+            if((seen[c>>>6] & 1L<<c)!=0) return false;
+            seen[c>>>6] |= 1L<<c;
         }
         return true;
     }
 
-    private List<Point> symmetrically(Point p,List<Point> bList,List<Point> wList){
-        List<Point> list = new ArrayList<>();
-        Point b1 = bList.get(0);
-        Point b2 = bList.get(1);
-        Point w1 = wList.get(0);
-        Point w2 = wList.get(1);
-        Point centerB = new Point((b1.x+b2.x)/2.0,(b1.y+b2.y)/2.0);
-        Point centerW = new Point((w1.x+w2.x)/2.0,(w1.y+w2.y)/2.0);
-        if(centerB.x==centerW.x && centerB.y==centerW.y){
-            //中心对称
-            list.add(new Point(centerB.x*2-p.x,centerB.y*2-p.y));
-        }
-        //斜率
-        double kb = (b2.y - b1.y) / (b2.x - b1.x);
-        double kw = (w2.y - w1.y) / (w2.x - w1.x);
-        //横轴对称
-        if (w1.x == w2.x && b1.x == b2.x && centerB.y == centerW.y) {
-            double x = p.x;
-            double y = centerB.y * 2 - p.y;
-            list.add(new Point(x,y));
-        } else if (w1.x == w2.x && b1.y == b2.y && centerB.y == centerW.y && b2.y == centerW.y) {
-            double x = p.x;
-            double y = centerB.y * 2 - p.y;
-            list.add(new Point(x,y));
-        }
-        else if (b1.x == b2.x && w1.y == w2.y && centerB.y == centerW.y && w2.y == centerB.y) {
-            double x = p.x;
-            double y = centerB.y * 2 - p.y;
-            list.add(new Point(x,y));
-        }
-        else if (centerB.x == centerW.x && centerB.y == centerW.y && (w1.y == w2.y && b1.y == b2.y && w1.y == b1.y)) {
-            double y = p.y;
-            double x = centerB.x * 2 - p.x;
-            list.add(new Point(x,y));
-        }
-        //纵轴对称
-        if (w1.y == w2.y && b1.y == b2.y && centerB.x == centerW.x) {
-            double y = p.y;
-            double x = centerB.x * 2 - p.x;
-            list.add(new Point(x,y));
-        }
-        else if (w1.y == w2.y && b1.x == b2.x && centerB.x == centerW.x && b2.x == centerB.x) {
-            double y = p.y;
-            double x = centerB.x * 2 - p.x;
-            list.add(new Point(x,y));
-        }
-
-        else if (b1.y == b2.y && w1.x == w2.x && centerB.x == centerW.x && w2.x == centerB.x) {
-            double y = p.y;
-            double x = centerB.x * 2 - p.x;
-            list.add(new Point(x,y));
-        }
-        else if (centerB.x == centerW.x && centerB.y == centerW.y && (w1.x == w2.x && b1.x == b2.x && w1.x == b1.x)) {
-            double y = p.y;
-            double x = centerB.x * 2 - p.x;
-            list.add(new Point(x,y));
-        }
-        double kcenter = (centerW.y - centerB.y) / (centerW.x - centerB.x);
-        //斜线对称
-        if (kb != 0 && kb == -kw && (kcenter == 1 || kcenter == -1)) {
-            //交叉斜线对称
-            if (kcenter < 0) {
-                //斜线右上
-                if (kb < 0) {
-                    double x = Math.abs(centerW.x - (p.y - centerW.y));
-                    double y = Math.abs(centerW.y - (p.x - centerW.x));
-                    list.add(new Point(x,y));
-                }
-                else {
-                    double x = Math.abs(centerB.x - (p.y - centerB.y));
-                    double y = Math.abs(centerB.y - (p.x - centerB.x));
-                    list.add(new Point(x,y));
-                }
-            }
-            else {
-                //斜线左上
-                if (kb > 0) {
-                    double x = Math.abs(centerW.x + (p.y - centerW.y));
-                    double y = Math.abs(centerW.y + (p.x - centerW.x));
-                    list.add(new Point(x,y));
-                }
-                else {
-                    double x = Math.abs(centerW.x + (p.y - centerW.y));
-                    double y = Math.abs(centerW.y + (p.x - centerW.x));
-                    list.add(new Point(x,y));
-                }
-            }
+    /**
+     * 开局四子(黑 history[0] history[2]，白 history[1] history[5])的对称变换把棋盘分成等价类，每点记为类中最小的点
+     * 坐标乘4后减去四子坐标之和，对称中心移到原点，变换与判断都是整数运算
+     */
+    private short[] dotClasses(){
+        int[] stones = {history[0] & 0xFF, history[2] & 0xFF, history[1] & 0xFF, history[5] & 0xFF};
+        int sx = 0;
+        int sy = 0;
+        int[] px = new int[4];
+        int[] py = new int[4];
+        for(int pos : stones){
+            sx += pos%boardSize;
+            sy += pos/boardSize;
         }
-        else if (kb == kw && kcenter == -kb) {
-            //平行斜线对称
-            if (kcenter < 0) {
-                double x = Math.abs(centerW.x - (p.y - centerW.y));
-                double y = Math.abs(centerW.y - (p.x - centerW.x));
-                list.add(new Point(x,y));
-            }
-            else  {
-                double x = Math.abs(centerW.x + (p.y - centerW.y));
-                double y = Math.abs(centerW.y + (p.x - centerW.x));
-                list.add(new Point(x,y));
+        for(int i = 0 ; i < 4 ; i ++){
+            px[i] = 4*(stones[i]%boardSize) - sx;
+            py[i] = 4*(stones[i]/boardSize) - sy;
+        }
+        int[][] found = new int[SYMMETRIES.length][];
+        int count = 0;
+        for(int[] t : SYMMETRIES){
+            //黑子变到黑子，白子变到白子
+            if(maps(t, px, py, 0) && maps(t, px, py, 2)) found[count++] = t;
+        }
+        short[] classes = new short[boardSize*boardSize];
+        for(int p = 0 ; p < classes.length ; p ++){
+            int x = 4*(p%boardSize) - sx;
+            int y = 4*(p/boardSize) - sy;
+            int min = p;
+            for(int k = 0 ; k < count ; k ++){
+                int[] t = found[k];
+                int qx = t[0]*x + t[1]*y + sx;
+                int qy = t[2]*x + t[3]*y + sy;
+                if((qx&3)!=0 || (qy&3)!=0) continue;
+                qx >>= 2;
+                qy >>= 2;
+                if(qx<0 || qy<0 || qx>=boardSize || qy>=boardSize) continue;
+                min = Math.min(min, qy*boardSize+qx);
             }
+            classes[p] = (short) min;
         }
-        return list;
+        return classes;
     }
 
-
+    /**
+     * 变换t是否把第i、i+1个子映射为这两个子(可以互换)
+     */
+    private static boolean maps(int[] t, int[] px, int[] py, int i){
+        int ax = t[0]*px[i] + t[1]*py[i];
+        int ay = t[2]*px[i] + t[3]*py[i];
+        int bx = t[0]*px[i+1] + t[1]*py[i+1];
+        int by = t[2]*px[i+1] + t[3]*py[i+1];
+        return ax==px[i] && ay==py[i] && bx==px[i+1] && by==py[i+1]
+                || ax==px[i+1] && ay==py[i+1] && bx==px[i] && by==py[i];
+    }
 
     private int moveSize(){
-        int size = 0;
-        for(Operation op:history){
-            if(op.status==MOVE){
-                size++;
-            }
+        return moveCount;
+    }
+
+    /**
+     * 悔棋，撤销最后一个操作(落子、虚手、声明、交换、打点、选择、认输)，恢复到操作之前的局面
+     * @return 没有可撤销的操作时返回false
+     */
+    public boolean undo(){
+        if(historySize==0) return false;
+        int op = history[--historySize];
+        int pos = op & 0xFF;
+        switch (operationStatus(op)){
+            case MOVE:
+                moveCount--;
+                if(pos!=NO_POS){
+                    int color = op>>>11 & 0b11;
+                    board.put(operationX(op), operationY(op), EMPTY);
+                    stoneHash ^= ZOBRIST[color-1][pos];
+                    touch(operationX(op), operationY(op));
+                }
+                break;
+            case ANN:
+                dotNumber = 0;
+                break;
+            case SWAP:
+                swap = false;
+                break;
+            case DOT:
+                dots = null;
+                break;
+            case CHOICE:
+                board.put(operationX(op), operationY(op), EMPTY);
+                stoneHash ^= ZOBRIST[BLACK-1][pos];
+                touch(operationX(op), operationY(op));
+                break;
+        }
+        int state = op>>>STATE_SHIFT;
+        status = state & 0b111;
+        turn = state>>>3 & 1;
+        nextColor = state>>>4 & 0b11;
+        result = state>>>6 & 0b11;
+        return true;
+    }
+
+    /**
+     * 撤销(x,y)处的落子，只能撤销最后一个操作
+     */
+    public boolean unplay(int x, int y){
+        if(historySize==0) return false;
+        int op = history[historySize-1];
+        if(operationStatus(op)!=MOVE || (op & 0xFF)!=y*boardSize+x) return false;
+        return undo();
+    }
+
+    /**
+     * 操作编码: 0-7位落点(y*boardSize+x) 8-10位操作类型 11-12位颜色 13-20位附加数据(打点数量、是否交换、选择序号、认输方)
+     * 21位起为操作前的棋局状态，由record()写入，供undo()恢复
+     */
+    private static int operation(int status, int color, int pos, int data){
+        return pos | status<<8 | color<<11 | (data & 0xFF)<<13;
+    }
+
+    private static final int STATE_SHIFT = 21;
+
+    private static int operationStatus(int op){
+        return op>>>8 & 0b111;
+    }
+
+    private static int operationX(int op){
+        return (op & 0xFF) % boardSize;
+    }
+
+    private static int operationY(int op){
+        return (op & 0xFF) / boardSize;
+    }
+
+    private void record(int op){
+        if(historySize==history.length){
+            history = Arrays.copyOf(history, historySize*2);
+        }
+        int state = status | turn<<3 | nextColor<<4 | result<<6;
+        history[historySize++] = op | state<<STATE_SHIFT;
+        if(operationStatus(op)==MOVE){
+            moveCount++;
         }
-        return size;
     }
 
     private void checkNext(){
+        if(!EngineMetrics.ENABLED){
+            advance();
+            return;
+        }
+        int from = status;
+        advance();
+        EngineMetrics.transition(from, status);
+    }
+
+    private void advance(){
         if(status==MOVE){
             //检测交换规则 棋局状态 黑白黑3 落子 黑声明打点数量 白交换 落子  打点 4选择打点 5结束
             if(rule==2){
@@ -478,6 +936,7 @@ public class SimpleGomokuEngine {
                 if(size==4){
                     //黑打点
                     status = DOT;
+                    dotClasses = null;
                     return;
                 }
             }
@@ -513,6 +972,203 @@ public class SimpleGomokuEngine {
         }
     }
 
+    public int status(){
+        return status;
+    }
+
+    public int nextColor(){
+        return nextColor;
+    }
+
+    public int turn(){
+        return turn;
+    }
+
+    public int rule(){
+        return rule;
+    }
+
+    public int result(){
+        return result;
+    }
+
+    public int colorAt(int x, int y){
+        return board.color(x,y);
+    }
+
+    /**
+     * 第y行color棋子的位图，第x位对应(x,y)
+     */
+    public int rowBits(int y, int color){
+        return board.line(color, 1, 0, y);
+    }
+
+    /**
+     * 与已有棋子横、竖、斜距离都不超过radius的空点，按行写入rows，第x位对应(x,y)
+     * @return 棋盘上没有棋子时返回false
+     */
+    public boolean nearby(int radius, int[] rows){
+        int size = board.boardSize;
+        int full = (1<<size)-1;
+        boolean stones = false;
+        for(int y = 0 ; y < size ; y ++){
+            int v = 0;
+            for(int dy = Math.max(0, y-radius) ; dy <= Math.min(size-1, y+radius) ; dy ++){
+                v |= rowBits(dy, BLACK) | rowBits(dy, WHITE);
+            }
+            int h = v;
+            for(int k = 1 ; k <= radius ; k ++){
+                h |= v<<k | v>>>k;
+            }
+            int occ = rowBits(y, BLACK) | rowBits(y, WHITE);
+            stones |= occ!=0;
+            rows[y] = h & full & ~occ;
+        }
+        return stones;
+    }
+
+    /**
+     * 禁手规则下黑棋的全部禁手空点(三三、四四、长连，能成五的点不算)，按行写入rows，第x位对应(x,y)
+     * 只重新判断上次调用以来有变化的点所在四条线上可能受影响的空点
+     * @return 禁手点数目，无禁手规则时为0
+     */
+    public int forbiddenPoints(int[] rows){
+        Arrays.fill(forbiddenDirty, 0);
+        for(int y = 0 ; y < boardSize ; y ++){
+            int changed = forbiddenChanged[y];
+            forbiddenChanged[y] = 0;
+            while (changed!=0){
+                int x = Integer.numberOfTrailingZeros(changed);
+                changed &= changed-1;
+                affected(x, y);
+            }
+        }
+        int count = 0;
+        for(int y = 0 ; y < boardSize ; y ++){
+            int dirty = forbiddenDirty[y];
+            int row = forbidden[y] & ~dirty;
+            dirty &= ~(rowBits(y, BLACK) | rowBits(y, WHITE));
+            if(rule>0){
+                while (dirty!=0){
+                    int x = Integer.numberOfTrailingZeros(dirty);
+                    dirty &= dirty-1;
+                    int i = checkRule(x, y, BLACK);
+                    if(i==FORBIDDEN_33 || i==FORBIDDEN_44 || i==CONNECT_LONG) row |= 1<<x;
+                }
+            }else{
+                row = 0;
+            }
+            forbidden[y] = row;
+            rows[y] = row;
+            count += Integer.bitCount(row);
+        }
+        return count;
+    }
+
+    private int forbiddenWord(int y){
+        return forbidden[y] | forbiddenChanged[y]<<16;
+    }
+
+    /**
+     * 记录(x,y)的棋子变化，下次forbiddenPoints()时处理
+     */
+    private void touch(int x, int y){
+        if(rule>0) forbiddenChanged[y] |= 1<<x;
+    }
+
+    /**
+     * 把(x,y)与经过它的横、竖、两条斜线上禁手判断可能受影响的点标记到forbiddenDirty，范围见reach()
+     * 多个点有变化时，离受影响点最近的那个变化点与它之间没有变化，按当前棋盘判断即可找到它
+     */
+    private void affected(int x, int y){
+        forbiddenDirty[y] |= 1<<x;
+        for(Direction dir : Direction.VALUES){
+            int[] delta = dir.delta();
+            int reach = reach(x, y, dir);
+            for(int k = 1 ; k <= reach ; k ++){
+                forbiddenDirty[y + k*delta[1]] |= 1<<(x + k*delta[0]);
+            }
+        }
+    }
+
+    /**
+     * (x,y)的棋子变化后，沿dir方向第1到第reach格的棋型判断可能随之改变
+     * 棋型查表看两侧各WINDOW格，更远处只在中间最多隔一个空点时才会被连续的棋子搜到，
+     * 所以走过WINDOW格并且已经遇到两个空点后停止
+     */
+    int reach(int x, int y, Direction dir){
+        int[] delta = dir.delta();
+        int empties = 0;
+        int k = 1;
+        for( ; ; k ++){
+            int cx = x + k*delta[0];
+            int cy = y + k*delta[1];
+            if(cx<0 || cy<0 || cx>=boardSize || cy>=boardSize || k>WINDOW && empties>=2) break;
+            if(board.color(cx, cy)==EMPTY) empties++;
+        }
+        return k-1;
+    }
+
+    /**
+     * 落子(含虚手)的数目
+     */
+    public int moveCount(){
+        return moveCount;
+    }
+
+    /**
+     * 山口规则声明的打点数量，声明之前为0
+     */
+    public int dotNumber(){
+        return dotNumber;
+    }
+
+    /**
+     * 局面的64位Zobrist散列，包含棋子、下一手颜色和棋局状态
+     */
+    public long hash(){
+        long h = stoneHash ^ ZOBRIST_STATUS[status];
+        return nextColor==WHITE ? h ^ ZOBRIST_WHITE : h;
+    }
+
+    /**
+     * 以棋盘中心为对称中心，第symmetry(0~7)个对称变换下点pos(y*boardSize+x)的像
+     */
+    public static int transform(int pos, int symmetry){
+        int[] t = SYMMETRIES[symmetry];
+        int c = boardSize/2;
+        int x = pos%boardSize - c;
+        int y = pos/boardSize - c;
+        return (t[2]*x + t[3]*y + c)*boardSize + t[0]*x + t[1]*y + c;
+    }
+
+    /**
+     * 第symmetry个对称变换的逆变换序号
+     */
+    public static int inverseSymmetry(int symmetry){
+        return INVERSE_SYMMETRY[symmetry];
+    }
+
+    /**
+     * 局面经过第symmetry个以棋盘中心为对称中心的变换后的hash()，symmetry为0时等于hash()
+     */
+    public long hash(int symmetry){
+        if(symmetry==0) return hash();
+        long h = ZOBRIST_STATUS[status];
+        if(nextColor==WHITE) h ^= ZOBRIST_WHITE;
+        for(int y = 0 ; y < boardSize ; y ++){
+            for(int c = BLACK ; c <= WHITE ; c ++){
+                int row = rowBits(y, c);
+                while (row!=0){
+                    int x = Integer.numberOfTrailingZeros(row);
+                    row &= row-1;
+                    h ^= ZOBRIST[c-1][transform(y*boardSize+x, symmetry)];
+                }
+            }
+        }
+        return h;
+    }
+
     public int oppositeColor(int color){
         return color==BLACK? WHITE:BLACK;
     }
@@ -523,124 +1179,237 @@ public class SimpleGomokuEngine {
 
 
     public int checkRule(int x, int y){
-        int l33 = 0;
-        int l44 = 0;
-        int ll = 0;
-        for(int i = 0 ; i < 4 ; i++){
-            Set<Shape> shape = getShape(x, y, i);
-            if(shape.contains(Shape.FIVE)) return CONNECT5;
-            if(shape.contains(Shape.OVER_FIVE)) ll++;
-            if(shape.contains(Shape.OPEN_FOUR) || shape.contains(Shape.SEMI_OPEN_FOUR)) l44++ ;
-            if(shape.contains(Shape.OPEN_THREE)) l33++ ;
-        }
-        if(ll>0) return CONNECT_LONG;
-        if(l44>1) return FORBIDDEN_44;
-        if(l33>1) return FORBIDDEN_33;
-        return 0;
+        int color = board.color(x,y);
+        if(color==EMPTY) return 0;
+        return checkRule(x, y, color);
     }
 
-    private Set<Shape> getShape(int x, int y, int d){
-        Set<Shape> shapes = new HashSet<>();
-        Node node = board.matrix[y][x];
-        int color = node.color;
-        if(color==EMPTY)
-        return shapes;
-        if(color==BLACK || color==WHITE){
-            //
-            int d2 = Direction.reverse(d);
-
-            int[] res1 = {0,0,0,0,0};
-            res1 = search(color, x, y, Direction.of(d), res1);
-            int[] res2 = {0,0,0,0,0};
-            res2 = search(color, x, y, Direction.of(d2), res2);
-            int count = res1[0] + 1 + res2[0]; //总长度
-            int e1 = res1[1];
-            int e2 = res2[1];
-            int empty = e1 + e2;//空格数目
-            int close = res1[2] + res2[2];//受阻方向数目
-            if(empty<2){
-                int len = count - empty;
-                if(len<5){
-                    shapes.add(Shape.ofLength(len,close));
-                    return shapes;
-                }
-            }
-            //e1=1,e2=1
+    /**
+     * 假设(x,y)处为color棋子时的禁手判断，(x,y)为空时结果与落子后checkRule(x,y)一致，但不会修改棋盘
+     */
+    public int checkRule(int x, int y, int color){
+        if(!EngineMetrics.ENABLED) return judge(x, y, color);
+        long start = System.nanoTime();
+        int verdict = judge(x, y, color);
+        EngineMetrics.checkRule(verdict, System.nanoTime()-start);
+        return verdict;
+    }
+
+    private int judge(int x, int y, int color){
+        return verdict(lineEntry(x, y, 0, color), lineEntry(x, y, 1, color),
+                lineEntry(x, y, 2, color), lineEntry(x, y, 3, color));
+    }
 
-            //  1_1 1 1_1
-            int l0 = res1[0]-res1[3];
-            int l1 = res1[3];
-            int l2 = res2[3];
-            int l3 = res2[0] - res2[3];
+    /**
+     * 由四个方向的sideEntry()结果得到禁手判断，与checkRule()相同
+     */
+    static int verdict(int e0, int e1, int e2, int e3){
+        if(((e0|e1|e2|e3)&LINE_FIVE)!=0) return CONNECT5;
+        if(((e0|e1|e2|e3)&LINE_LONG)!=0) return CONNECT_LONG;
+        if(count(LINE_FOUR, e0, e1, e2, e3)>1) return FORBIDDEN_44;
+        if(count(LINE_THREE, e0, e1, e2, e3)>1) return FORBIDDEN_33;
+        return 0;
+    }
 
-            //取中间
-            int center = l1+1+l2;
+    private static int count(int flag, int e0, int e1, int e2, int e3){
+        return ((e0&flag)!=0 ? 1 : 0) + ((e1&flag)!=0 ? 1 : 0) + ((e2&flag)!=0 ? 1 : 0) + ((e3&flag)!=0 ? 1 : 0);
+    }
 
-            if(center>=5){
-                shapes.add(Shape.ofLength(center,close));
-                return shapes;
-            }
-            else if(center==4){
-                shapes.add(Shape.OPEN_FOUR);
+    /**
+     * 落子点两侧各取的格数，ShapeCounter与SparseGomokuEngine共用
+     */
+    static final int WINDOW = 5;
+    private static final int SIDE_MASK = (1<<WINDOW)-1;
+    /**
+     * 单侧棋型数 3^WINDOW
+     */
+    private static final int SIDE_PATTERNS = 243;
+    /**
+     * 二进制位图转三进制，每个置位i贡献3^i
+     */
+    private static final int[] TERNARY = new int[1<<WINDOW];
+    /**
+     * 以两侧窗口的三进制编码为下标(每格 0空 1己方 2受阻)，低10位为棋型掩码，高位为禁手判断标记
+     */
+    private static final char[] LINE_TABLE = new char[SIDE_PATTERNS*SIDE_PATTERNS];
+    private static final int SHAPE_MASK = (1<<10)-1;
+    private static final int LINE_FIVE = 1<<10;
+    private static final int LINE_LONG = 1<<11;
+    private static final int LINE_FOUR = 1<<12;
+    private static final int LINE_THREE = 1<<13;
+    /**
+     * 搜索越过了窗口，窗口内无法判定，需回退到整条线搜索
+     */
+    private static final int LINE_UNRESOLVED = 1<<15;
+
+    static {
+        for(int m = 0 ; m < TERNARY.length ; m ++){
+            int t = 0;
+            for(int i = WINDOW-1 ; i >= 0 ; i --){
+                t = t*3 + (m>>>i & 1);
             }
-            else if(center==3){
-                shapes.add(Shape.OPEN_THREE);
-            }else {
-                shapes.add(Shape.ofLength(center,close));
+            TERNARY[m] = t;
+        }
+        int[] sides = new int[SIDE_PATTERNS];
+        for(int idx = 0 ; idx < SIDE_PATTERNS ; idx ++){
+            int own = 0;
+            int blank = 0;
+            for(int i = 0, v = idx ; i < WINDOW ; i ++, v /= 3){
+                if(v%3==0) blank |= 1<<i;
+                if(v%3==1) own |= 1<<i;
             }
-            int left = center + l0;
-            int right = center + l3;
-            shapes.add(Shape.ofLength(left,res1[2]));
-            shapes.add(Shape.ofLength(right,res2[2]));
-            return shapes;
-        }else{
-            shapes.add(Shape.ONE);
-            return shapes;
-        }
-    }
-
-
-    /**
-     *
-     * @param color
-     * @param fromX
-     * @param fromY
-     * @param d
-     * @param res 0子数1空格数2受阻数3不算空格的数目
-     * @return
-     */
-    private int[] search(int color,int fromX,int fromY,Direction d,int[] res){
-        if(color==EMPTY) return res; //空白暂无搜索必要
-        int toX = fromX+d.delta[0];
-        int toY = fromY+d.delta[1];
-        if(toX<0 || toY<0 || toX>boardSize-1 || toY>boardSize-1){
-            res[2]++; //受阻
-            return res;
-        }
-        int colorTo = board.matrix[toY][toX].color;
-        if(colorTo==color){
-            res[0]++;
-            res[4]=0;
-        }else if(colorTo==EMPTY){
-            if(res[4]==1){
-                //连续空格,当作无空格
-                res[1]=0;
-                return res;
+            int res = search(own, blank);
+            sides[idx] = res>>>16<WINDOW ? res : -1;
+        }
+        for(int s1 = 0 ; s1 < SIDE_PATTERNS ; s1 ++){
+            for(int s2 = 0 ; s2 < SIDE_PATTERNS ; s2 ++){
+                int entry = sides[s1]<0 || sides[s2]<0 ? LINE_UNRESOLVED : lineFlags(classify(sides[s1], sides[s2]));
+                LINE_TABLE[s1 + s2*SIDE_PATTERNS] = (char) entry;
             }
-            res[1]++;
-            //多余两个
-            if(res[1]>1){
-                res[1] = 1;
-                return res;
+        }
+    }
+
+    /**
+     * (x,y)处棋子在方向d(0~3)上的棋型掩码，见Shape.mask()
+     */
+    public int getShape(int x, int y, int d){
+        int color = board.color(x,y);
+        if(color==EMPTY) return 0;
+        return getShape(x, y, d, color);
+    }
+
+    /**
+     * 假设(x,y)处为color棋子时在方向d上的棋型掩码，不会修改棋盘
+     */
+    public int getShape(int x, int y, int d, int color){
+        return lineEntry(x, y, d, color) & SHAPE_MASK;
+    }
+
+    /**
+     * 查表得到(x,y)处color棋子在方向d上的棋型与禁手标记
+     */
+    private int lineEntry(int x, int y, int d, int color){
+        int own = board.line(color, d, x, y);
+        int blank = ~(own | board.line(oppositeColor(color), d, x, y)) & ((1<<board.length(d, x, y))-1);
+        int p = board.offset(d, x, y);
+        //沿线序增大方向与减小方向各取一侧，减小方向先把位图翻转
+        int own1 = own>>>(p+1);
+        int blank1 = blank>>>(p+1);
+        int own2 = Integer.reverse(own)>>>(31-p)>>>1;
+        int blank2 = Integer.reverse(blank)>>>(31-p)>>>1;
+        return sideEntry(own1, blank1, own2, blank2);
+    }
+
+    /**
+     * 由落子点两侧的己方与空格位图查表，最低位为紧邻的格子，位图之外与两者都不是的格子视为受阻
+     * 低10位为棋型掩码(见shapeMask())，高位为verdict()用的禁手标记
+     * 两侧各给出WINDOW格时若needsFullSides()为真，需给出更长的两侧(每侧不超过14格)再调用
+     */
+    static int sideEntry(int own1, int blank1, int own2, int blank2){
+        int entry = LINE_TABLE[sideIndex(own1, blank1) + sideIndex(own2, blank2)*SIDE_PATTERNS];
+        if((entry&LINE_UNRESOLVED)!=0){
+            entry = lineFlags(classify(search(own1, blank1), search(own2, blank2)));
+        }
+        return entry;
+    }
+
+    /**
+     * 两侧各WINDOW格不足以判定棋型
+     */
+    static boolean needsFullSides(int own1, int blank1, int own2, int blank2){
+        return (LINE_TABLE[sideIndex(own1, blank1) + sideIndex(own2, blank2)*SIDE_PATTERNS] & LINE_UNRESOLVED)!=0;
+    }
+
+    static int shapeMask(int entry){
+        return entry & SHAPE_MASK;
+    }
+
+    private static int sideIndex(int own, int blank){
+        return TERNARY[own&SIDE_MASK] + 2*TERNARY[~(own|blank)&SIDE_MASK];
+    }
+
+    private static int lineFlags(int shapes){
+        int flags = shapes;
+        if((shapes&Shape.FIVE.mask())!=0) flags |= LINE_FIVE;
+        if((shapes&Shape.OVER_FIVE.mask())!=0) flags |= LINE_LONG;
+        if((shapes&(Shape.OPEN_FOUR.mask()|Shape.SEMI_OPEN_FOUR.mask()))!=0) flags |= LINE_FOUR;
+        if((shapes&Shape.OPEN_THREE.mask())!=0) flags |= LINE_THREE;
+        return flags;
+    }
+
+    /**
+     * 由两侧的搜索结果得到棋型掩码
+     */
+    private static int classify(int res1, int res2){
+        int count = (res1&0xF) + 1 + (res2&0xF); //总长度
+        int e1 = res1>>>4 & 0xF;
+        int e2 = res2>>>4 & 0xF;
+        int empty = e1 + e2;//空格数目
+        int close1 = res1>>>8 & 0xF;
+        int close2 = res2>>>8 & 0xF;
+        int close = close1 + close2;//受阻方向数目
+        if(empty<2){
+            int len = count - empty;
+            if(len<5){
+                return Shape.maskOf(len,close);
             }
-            //非空格结尾
-            res[3]=res[0];
-            res[4]=1;
-        }else{
-            res[2]++; //受阻
-            return res;
         }
-        return search(color,toX,toY,d,res);
+        //e1=1,e2=1
+
+        //  1_1 1 1_1
+        int l1 = res1>>>12 & 0xF;
+        int l0 = (res1&0xF)-l1;
+        int l2 = res2>>>12 & 0xF;
+        int l3 = (res2&0xF) - l2;
+
+        //取中间
+        int center = l1+1+l2;
+
+        int shapes;
+        if(center>=5){
+            return Shape.maskOf(center,close);
+        }
+        else if(center==4){
+            shapes = Shape.OPEN_FOUR.mask();
+        }
+        else if(center==3){
+            shapes = Shape.OPEN_THREE.mask();
+        }else {
+            shapes = Shape.maskOf(center,close);
+        }
+        int left = center + l0;
+        int right = center + l3;
+        shapes |= Shape.maskOf(left,close1);
+        shapes |= Shape.maskOf(right,close2);
+        return shapes;
+    }
+
+
+    /**
+     * 从落子点向一个方向搜索，位图的最低位为紧邻落子点的格子，线外视为受阻
+     * @param own 己方棋子位图
+     * @param empty 空格位图
+     * @return 每4位一项 0子数1空格数2受阻数3不算空格的数目4搜索到的最远格
+     */
+    private static int search(int own, int empty){
+        //紧邻的连续己方棋子
+        int a = Integer.numberOfTrailingZeros(~own);
+        if((empty>>>a & 1)==0){
+            //受阻
+            return a | 1<<8 | a<<16;
+        }
+        if((empty>>>(a+1) & 1)==1){
+            //连续空格,当作无空格
+            return a | a<<12 | (a+1)<<16;
+        }
+        if((own>>>(a+1) & 1)==0){
+            //空格后受阻
+            return a | 1<<4 | 1<<8 | a<<12 | (a+1)<<16;
+        }
+        //空格后的连续己方棋子
+        int b = Integer.numberOfTrailingZeros(~(own>>>(a+1)));
+        int close = (empty>>>(a+1+b) & 1)==0 ? 1 : 0;
+        return a+b | 1<<4 | close<<8 | a<<12 | (a+1+b)<<16;
     }
 
     private String boardStr(){
@@ -653,7 +1422,7 @@ public class SimpleGomokuEngine {
         for(int i = 0 ; i < boardSize; i ++){
             boardStr += boardSize - i >9 ? ""+ (boardSize - i) : " "+(boardSize - i);
             for(int j = 0 ; j < boardSize ; j ++){
-                int piece = board.matrix[i][j].color;
+                int piece = board.color(j,i);
                 if(EMPTY == piece){
                     boardStr += " .";
                 }
@@ -0,0 +1,344 @@
+package com.xiaoming.gomoku.engine;
+
+import java.util.Arrays;
+
+/**
+ * 稀疏棋盘的五子棋引擎，用于大棋盘与无边界棋盘，只支持规则0(无禁手)与1(禁手)
+ * 棋盘按16x16分块，每块为黑白各16行的位图，块按坐标存放在开放寻址的散列表中，只有落过子的块才分配，内存与棋子数成正比
+ * 棋型与禁手判断取落子点两侧的格子后交给SimpleGomokuEngine的同一套查表，结果与15路引擎在同样的局部棋形下一致
+ * 有边界时坐标为0~size-1，边界外视为受阻；无边界时坐标为-2^30~2^30-1
+ */
+public class SparseGomokuEngine {
+
+    private static final int TILE_BITS = 4;
+    private static final int TILE = 1<<TILE_BITS;
+    private static final int TILE_MASK = TILE-1;
+    /**
+     * 查表时每侧先取的格数
+     */
+    private static final int WINDOW = SimpleGomokuEngine.WINDOW;
+    /**
+     * 查表不能判定时每侧取的格数，与15路棋盘上一侧最多的格数相同
+     */
+    private static final int FULL_SIDE = SimpleGomokuEngine.boardSize-1;
+    /**
+     * 方向0~3上线序增大一侧的步长，与SimpleGomokuEngine.Board的线序一致
+     */
+    private static final int[][] SIDES = {{0, 1}, {1, 0}, {1, -1}, {1, 1}};
+    private static final long EMPTY_KEY = Long.MIN_VALUE;
+    /**
+     * 无边界时坐标的范围，留出余量使沿线取格子时不会溢出
+     */
+    private static final int LIMIT = 1<<30;
+
+    private final int rule;
+    /**
+     * 棋盘边长，0为无边界
+     */
+    private final int size;
+
+    /**
+     * 块坐标到块序号的开放寻址散列表，线性探测，块只增不删
+     */
+    private long[] keys;
+    private int[] slots;
+    private int tileCount;
+    /**
+     * 第t块的第r行在 t*TILE+r，第x位对应块内横坐标x
+     */
+    private char[] black;
+    private char[] white;
+    /**
+     * 最近访问的块，相邻的格子大多在同一块
+     */
+    private long cachedKey = EMPTY_KEY;
+    private int cachedTile = -1;
+
+    /**
+     * 落子记录，每项为 x<<32 | y&0xFFFFFFFF，虚手为PASS(坐标范围内不会出现)
+     */
+    private long[] history = new long[64];
+    private int historySize;
+    private static final long PASS = Long.MIN_VALUE;
+
+    private int status = SimpleGomokuEngine.MOVE;
+    private int nextColor = SimpleGomokuEngine.BLACK;
+    /**
+     * 结束的结果 0 黑胜 1 白胜，与SimpleGomokuEngine的side一致(无交换时黑为side0)
+     */
+    private int result;
+    private final SimpleGomokuEngine.MoveResult moveResult = new SimpleGomokuEngine.MoveResult();
+
+    /**
+     * 无边界棋盘
+     */
+    public SparseGomokuEngine(int rule){
+        this(rule, 0);
+    }
+
+    /**
+     * @param size 棋盘边长，0为无边界
+     */
+    public SparseGomokuEngine(int rule, int size){
+        if(rule!=0 && rule!=1) throw new IllegalArgumentException("rule "+rule);
+        if(size<0) throw new IllegalArgumentException("size "+size);
+        this.rule = rule;
+        this.size = size;
+        keys = new long[16];
+        Arrays.fill(keys, EMPTY_KEY);
+        slots = new int[16];
+        black = new char[8*TILE];
+        white = new char[8*TILE];
+    }
+
+    public int rule(){
+        return rule;
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public int status(){
+        return status;
+    }
+
+    public int nextColor(){
+        return nextColor;
+    }
+
+    public int result(){
+        return result;
+    }
+
+    /**
+     * 落子(含虚手)的数目
+     */
+    public int moveCount(){
+        return historySize;
+    }
+
+    /**
+     * 已分配的块数，内存占用约为 块数*64字节
+     */
+    public int tiles(){
+        return tileCount;
+    }
+
+    public boolean inside(int x, int y){
+        if(size==0) return x>=-LIMIT && y>=-LIMIT && x<LIMIT && y<LIMIT;
+        return x>=0 && y>=0 && x<size && y<size;
+    }
+
+    public int colorAt(int x, int y){
+        int t = tile(x, y);
+        if(t<0) return SimpleGomokuEngine.EMPTY;
+        int i = t*TILE + (y&TILE_MASK);
+        int bit = 1<<(x&TILE_MASK);
+        if((black[i]&bit)!=0) return SimpleGomokuEngine.BLACK;
+        if((white[i]&bit)!=0) return SimpleGomokuEngine.WHITE;
+        return SimpleGomokuEngine.EMPTY;
+    }
+
+    /**
+     * 落子，返回的结果对象由引擎持有，下一次落子时会被覆盖，与SimpleGomokuEngine.play()相同
+     */
+    public SimpleGomokuEngine.MoveResult play(int x, int y, int color){
+        int code = move(x, y, color);
+        if(code<0) return null;
+        SimpleGomokuEngine.MoveResult res = moveResult;
+        res.success = (code&SimpleGomokuEngine.MOVE_SUCCESS)!=0;
+        res.end = (code&SimpleGomokuEngine.MOVE_END)!=0;
+        res.rule = code>>>SimpleGomokuEngine.MOVE_RULE_SHIFT;
+        return res;
+    }
+
+    /**
+     * 落子，结果编码与SimpleGomokuEngine.move()相同
+     */
+    public int move(int x, int y, int color){
+        if(status!=SimpleGomokuEngine.MOVE || color!=nextColor) return -1;
+        if(!inside(x, y) || colorAt(x, y)!=SimpleGomokuEngine.EMPTY) return 0;
+        put(x, y, color);
+        record((long) x<<32 | y&0xFFFFFFFFL);
+        int code = SimpleGomokuEngine.MOVE_SUCCESS;
+        int verdict = checkRule(x, y, color);
+        if(verdict==SimpleGomokuEngine.CONNECT5){
+            code |= SimpleGomokuEngine.MOVE_END;
+            status = SimpleGomokuEngine.END;
+            result = color==SimpleGomokuEngine.BLACK ? 0 : 1;
+        }else if(rule>0 && color==SimpleGomokuEngine.BLACK){
+            code |= verdict<<SimpleGomokuEngine.MOVE_RULE_SHIFT;
+            if(verdict==SimpleGomokuEngine.FORBIDDEN_33 || verdict==SimpleGomokuEngine.FORBIDDEN_44
+                    || verdict==SimpleGomokuEngine.CONNECT_LONG){
+                code |= SimpleGomokuEngine.MOVE_END;
+                status = SimpleGomokuEngine.END;
+                result = 1;
+            }
+        }
+        nextColor = opposite(color);
+        return code;
+    }
+
+    public boolean pass(){
+        if(status!=SimpleGomokuEngine.MOVE) return false;
+        record(PASS);
+        nextColor = opposite(nextColor);
+        return true;
+    }
+
+    /**
+     * 撤销最后一手(落子或虚手)，对局结束后也可以撤销
+     */
+    public boolean undo(){
+        if(historySize==0) return false;
+        long h = history[--historySize];
+        if(h!=PASS){
+            put((int) (h>>>32), (int) h, SimpleGomokuEngine.EMPTY);
+        }
+        status = SimpleGomokuEngine.MOVE;
+        result = 0;
+        nextColor = opposite(nextColor);
+        return true;
+    }
+
+    /**
+     * 与SimpleGomokuEngine.checkRule(x,y)相同
+     */
+    public int checkRule(int x, int y){
+        int color = colorAt(x, y);
+        if(color==SimpleGomokuEngine.EMPTY) return 0;
+        return checkRule(x, y, color);
+    }
+
+    /**
+     * 假设(x,y)处为color棋子时的禁手判断，与SimpleGomokuEngine.checkRule(x,y,color)相同
+     */
+    public int checkRule(int x, int y, int color){
+        return SimpleGomokuEngine.verdict(lineEntry(x, y, 0, color), lineEntry(x, y, 1, color),
+                lineEntry(x, y, 2, color), lineEntry(x, y, 3, color));
+    }
+
+    /**
+     * (x,y)处棋子在方向d(0~3)上的棋型掩码，见SimpleGomokuEngine.Shape.mask()
+     */
+    public int getShape(int x, int y, int d){
+        int color = colorAt(x, y);
+        if(color==SimpleGomokuEngine.EMPTY) return 0;
+        return getShape(x, y, d, color);
+    }
+
+    public int getShape(int x, int y, int d, int color){
+        return SimpleGomokuEngine.shapeMask(lineEntry(x, y, d, color));
+    }
+
+    private int lineEntry(int x, int y, int d, int color){
+        int dx = SIDES[d][0];
+        int dy = SIDES[d][1];
+        int side1 = side(x, y, dx, dy, color, WINDOW);
+        int side2 = side(x, y, -dx, -dy, color, WINDOW);
+        if(SimpleGomokuEngine.needsFullSides(side1 & 0xFFFF, side1>>>16, side2 & 0xFFFF, side2>>>16)){
+            side1 = side(x, y, dx, dy, color, FULL_SIDE);
+            side2 = side(x, y, -dx, -dy, color, FULL_SIDE);
+        }
+        return SimpleGomokuEngine.sideEntry(side1 & 0xFFFF, side1>>>16, side2 & 0xFFFF, side2>>>16);
+    }
+
+    /**
+     * 从(x,y)沿(dx,dy)的n个格子，低16位为color的位图，高16位为空格位图，最低位为紧邻的格子
+     */
+    private int side(int x, int y, int dx, int dy, int color, int n){
+        int bits = 0;
+        for(int k = 1 ; k <= n ; k ++){
+            int cx = x + k*dx;
+            int cy = y + k*dy;
+            if(!inside(cx, cy)) break;
+            int c = colorAt(cx, cy);
+            if(c==color) bits |= 1<<(k-1);
+            else if(c==SimpleGomokuEngine.EMPTY) bits |= 1<<(k-1+16);
+        }
+        return bits;
+    }
+
+    private void put(int x, int y, int color){
+        int t = color==SimpleGomokuEngine.EMPTY ? tile(x, y) : createTile(x, y);
+        if(t<0) return;
+        int i = t*TILE + (y&TILE_MASK);
+        char bit = (char) (1<<(x&TILE_MASK));
+        black[i] &= ~bit;
+        white[i] &= ~bit;
+        if(color==SimpleGomokuEngine.BLACK) black[i] |= bit;
+        if(color==SimpleGomokuEngine.WHITE) white[i] |= bit;
+    }
+
+    /**
+     * (x,y)所在块的序号，没有分配时返回-1
+     */
+    private int tile(int x, int y){
+        long key = tileKey(x, y);
+        if(key==cachedKey) return cachedTile;
+        int mask = keys.length-1;
+        for(int i = hash(key) & mask ; ; i = (i+1) & mask){
+            if(keys[i]==key){
+                cachedKey = key;
+                cachedTile = slots[i];
+                return cachedTile;
+            }
+            if(keys[i]==EMPTY_KEY) return -1;
+        }
+    }
+
+    private int createTile(int x, int y){
+        int t = tile(x, y);
+        if(t>=0) return t;
+        if((tileCount+1)*2>keys.length) rehash();
+        long key = tileKey(x, y);
+        int mask = keys.length-1;
+        int i = hash(key) & mask;
+        while (keys[i]!=EMPTY_KEY) i = (i+1) & mask;
+        t = tileCount++;
+        keys[i] = key;
+        slots[i] = t;
+        if(tileCount*TILE>black.length){
+            black = Arrays.copyOf(black, black.length*2);
+            white = Arrays.copyOf(white, white.length*2);
+        }
+        cachedKey = key;
+        cachedTile = t;
+        return t;
+    }
+
+    private void rehash(){
+        long[] oldKeys = keys;
+        int[] oldSlots = slots;
+        keys = new long[oldKeys.length*2];
+        Arrays.fill(keys, EMPTY_KEY);
+        slots = new int[keys.length];
+        int mask = keys.length-1;
+        for(int j = 0 ; j < oldKeys.length ; j ++){
+            if(oldKeys[j]==EMPTY_KEY) continue;
+            int i = hash(oldKeys[j]) & mask;
+            while (keys[i]!=EMPTY_KEY) i = (i+1) & mask;
+            keys[i] = oldKeys[j];
+            slots[i] = oldSlots[j];
+        }
+    }
+
+    private static long tileKey(int x, int y){
+        return (long) (x>>TILE_BITS)<<32 | (y>>TILE_BITS)&0xFFFFFFFFL;
+    }
+
+    private static int hash(long key){
+        long h = key*0x9E3779B97F4A7C15L;
+        return (int) (h>>>32);
+    }
+
+    private void record(long h){
+        if(historySize==history.length) history = Arrays.copyOf(history, historySize*2);
+        history[historySize++] = h;
+    }
+
+    private static int opposite(int color){
+        return color==SimpleGomokuEngine.BLACK ? SimpleGomokuEngine.WHITE : SimpleGomokuEngine.BLACK;
+    }
+}
@@ -0,0 +1,275 @@
+package com.xiaoming.gomoku.engine;
+
+import java.util.Arrays;
+
+/**
+ * 威胁空间搜索，只走攻方的冲四(VCF)或冲四与活三(VCT)
+ * 守方只考虑必要的防点：挡五点、能破坏活三的点以及自己的反冲四，
+ * 禁手规则下黑方守棋时禁手点不能用来防守
+ * 胜利以实际落子结果为准(move()返回结束且攻方获胜)
+ */
+public class ThreatSolver {
+
+    private static final int N = SimpleGomokuEngine.boardSize;
+    private static final int CELLS = N*N;
+    private static final int MAX_PLY = 60;
+
+    private static final int FIVE = SimpleGomokuEngine.Shape.FIVE.mask();
+    private static final int FOUR = SimpleGomokuEngine.Shape.OPEN_FOUR.mask() | SimpleGomokuEngine.Shape.SEMI_OPEN_FOUR.mask();
+    private static final int OPEN_FOUR = SimpleGomokuEngine.Shape.OPEN_FOUR.mask();
+    private static final int THREE = SimpleGomokuEngine.Shape.OPEN_THREE.mask();
+
+    private final SimpleGomokuEngine engine;
+
+    private final int[][] cells = new int[MAX_PLY][CELLS];
+    private final int[] near = new int[N];
+    private final int[] path = new int[MAX_PLY];
+    private int[] solution;
+
+    private long budget;
+    /**
+     * System.nanoTime()的截止时间，0为不限
+     */
+    private long deadline;
+    private long nodes;
+    private int attacker;
+
+    public ThreatSolver(SimpleGomokuEngine engine){
+        this.engine = engine;
+    }
+
+    /**
+     * 之后的求解在System.nanoTime()到达deadline时放弃，0为只按节点数限制
+     */
+    public void setDeadline(long deadline){
+        this.deadline = deadline;
+    }
+
+    /**
+     * 连续冲四取胜
+     * @param nodeBudget 最多搜索的节点数
+     * @return 攻守交替的落点序列(y*boardSize+x)，以攻方成五或守方已无法防守的一手结束；找不到时返回null
+     */
+    public int[] vcf(long nodeBudget){
+        return solve(nodeBudget, false);
+    }
+
+    /**
+     * 冲四与活三连续取胜，参数与返回值同vcf()
+     */
+    public int[] vct(long nodeBudget){
+        return solve(nodeBudget, true);
+    }
+
+    /**
+     * 上一次求解搜索的节点数
+     */
+    public long nodes(){
+        return nodes;
+    }
+
+    private int[] solve(long nodeBudget, boolean threes){
+        solution = null;
+        nodes = 0;
+        budget = nodeBudget;
+        if(engine.status()!=SimpleGomokuEngine.MOVE) return null;
+        attacker = engine.turn();
+        return attack(0, threes) ? solution : null;
+    }
+
+    /**
+     * 计一个节点，超出节点数或时间时返回true；每1024个节点看一次时间，超时后把节点数上限降为0
+     */
+    private boolean exhausted(){
+        if(++nodes>budget) return true;
+        if(deadline!=0 && (nodes&1023)==0 && System.nanoTime()-deadline>=0){
+            budget = 0;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 攻方走子(或节点)
+     */
+    private boolean attack(int ply, boolean threes){
+        if(exhausted() || ply>=MAX_PLY-2) return false;
+        int me = engine.nextColor();
+        int opp = engine.oppositeColor(me);
+        int[] list = cells[ply];
+        if(collect(me, FIVE, list)>0){
+            return play(ply, list[0]) && finish(ply);
+        }
+        int threats = collect(opp, FIVE, list);
+        if(threats>1) return false;
+        if(threats==1){
+            //对方冲四必须挡，挡完后由守方节点判断攻方的威胁是否还在
+            int block = list[0];
+            if(forbidden(block, me)) return false;
+            return attackWith(ply, block, threes);
+        }
+        int count = collect(me, threes ? FOUR|THREE : FOUR, list);
+        //冲四排在活三之前
+        int fours = 0;
+        for(int i = 0 ; i < count ; i ++){
+            if((shapes(list[i], me)&FOUR)!=0){
+                int t = list[fours];
+                list[fours++] = list[i];
+                list[i] = t;
+            }
+        }
+        for(int i = 0 ; i < count ; i ++){
+            if(forbidden(list[i], me)) continue;
+            if(attackWith(ply, list[i], threes)) return true;
+            if(nodes>budget) return false;
+        }
+        return false;
+    }
+
+    private boolean attackWith(int ply, int move, boolean threes){
+        int code = engine.move(move%N, move/N, engine.nextColor());
+        path[ply] = move;
+        if((code&SimpleGomokuEngine.MOVE_END)!=0){
+            boolean win = engine.result()==attacker;
+            engine.undo();
+            return win && finish(ply);
+        }
+        boolean win = defend(ply+1, threes);
+        engine.undo();
+        return win;
+    }
+
+    /**
+     * 守方走子(与节点)，所有防点都失败才算攻方取胜
+     */
+    private boolean defend(int ply, boolean threes){
+        if(exhausted() || ply>=MAX_PLY-2) return false;
+        int me = engine.nextColor();
+        int opp = engine.oppositeColor(me);
+        int[] list = cells[ply];
+        if(collect(me, FIVE, list)>0) return false;
+        int count = collect(opp, FIVE, list);
+        if(count>1){
+            //两个成五点挡不住
+            return finish(ply-1);
+        }
+        if(count==0){
+            if(!threes) return false;
+            count = defenses(ply, me, opp, list);
+            if(count==0) return false;
+        }
+        boolean defended = false;
+        //倒序，最后搜索的排序最靠前的防点留在解中
+        for(int i = count-1 ; i >= 0 ; i --){
+            int move = list[i];
+            if(forbidden(move, me)) continue;
+            defended = true;
+            int code = engine.move(move%N, move/N, me);
+            path[ply] = move;
+            boolean win = (code&SimpleGomokuEngine.MOVE_END)==0 ? attack(ply+1, threes) : engine.result()==attacker;
+            engine.undo();
+            if(!win) return false;
+        }
+        //所有防点都是禁手，黑方已无法防守
+        return defended || finish(ply-1);
+    }
+
+    /**
+     * 活三的防点：攻方上一手四条线上4格内、落子后能减少攻方活四点的空点，以及守方自己的冲四
+     */
+    private int defenses(int ply, int me, int opp, int[] list){
+        int last = path[ply-1];
+        int gains = gains(last, opp);
+        if(gains==0) return 0;
+        int count = 0;
+        for(int d = 0 ; d < 4 ; d ++){
+            int[] delta = SimpleGomokuEngine.Direction.of(d).delta();
+            for(int k = -4 ; k <= 4 ; k ++){
+                int x = last%N + k*delta[0];
+                int y = last/N + k*delta[1];
+                if(k==0 || x<0 || y<0 || x>=N || y>=N || engine.colorAt(x, y)!=SimpleGomokuEngine.EMPTY) continue;
+                nodes++;
+                int code = engine.move(x, y, me);
+                boolean ended = (code&SimpleGomokuEngine.MOVE_END)!=0;
+                int left = ended ? gains : gains(last, opp);
+                engine.undo();
+                if(left<gains) list[count++] = y*N+x;
+            }
+        }
+        return append(me, FOUR, list, count);
+    }
+
+    /**
+     * move所在四条线上4格内、color落子后成活四的空点数
+     */
+    private int gains(int move, int color){
+        int count = 0;
+        for(int d = 0 ; d < 4 ; d ++){
+            int[] delta = SimpleGomokuEngine.Direction.of(d).delta();
+            for(int k = -4 ; k <= 4 ; k ++){
+                int x = move%N + k*delta[0];
+                int y = move/N + k*delta[1];
+                if(k==0 || x<0 || y<0 || x>=N || y>=N || engine.colorAt(x, y)!=SimpleGomokuEngine.EMPTY) continue;
+                if((shapes(y*N+x, color)&OPEN_FOUR)!=0) count++;
+            }
+        }
+        return count;
+    }
+
+    private boolean play(int ply, int move){
+        int code = engine.move(move%N, move/N, engine.nextColor());
+        path[ply] = move;
+        boolean win = (code&SimpleGomokuEngine.MOVE_END)!=0 && engine.result()==attacker;
+        engine.undo();
+        return win;
+    }
+
+    /**
+     * 记录取胜路线，最终成功的分支最后记录，会覆盖失败分支留下的记录
+     */
+    private boolean finish(int ply){
+        solution = Arrays.copyOf(path, ply+1);
+        return true;
+    }
+
+    /**
+     * 已有棋子两格内、color落子后含mask中棋型的空点
+     */
+    private int collect(int color, int mask, int[] out){
+        return append(color, mask, out, 0);
+    }
+
+    private int append(int color, int mask, int[] out, int count){
+        if(!engine.nearby(2, near)) return count;
+        int start = count;
+        for(int y = 0 ; y < N ; y ++){
+            int row = near[y];
+            while (row!=0){
+                int x = Integer.numberOfTrailingZeros(row);
+                row &= row-1;
+                int move = y*N+x;
+                if((shapes(move, color)&mask)==0) continue;
+                boolean dup = false;
+                for(int i = 0 ; i < start && !dup ; i ++) dup = out[i]==move;
+                if(!dup) out[count++] = move;
+            }
+        }
+        return count;
+    }
+
+    private int shapes(int move, int color){
+        int x = move%N;
+        int y = move/N;
+        return engine.getShape(x, y, 0, color) | engine.getShape(x, y, 1, color)
+                | engine.getShape(x, y, 2, color) | engine.getShape(x, y, 3, color);
+    }
+
+    /**
+     * 禁手规则下黑棋的禁手点(成五优先于禁手)
+     */
+    private boolean forbidden(int move, int color){
+        if(engine.rule()==0 || color!=SimpleGomokuEngine.BLACK) return false;
+        int rule = engine.checkRule(move%N, move/N, color);
+        return rule==SimpleGomokuEngine.FORBIDDEN_33 || rule==SimpleGomokuEngine.FORBIDDEN_44 || rule==SimpleGomokuEngine.CONNECT_LONG;
+    }
+}
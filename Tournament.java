@@ -0,0 +1,459 @@
+package com.xiaoming.gomoku.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 两个引擎配置的本机对抗赛，SimpleGomokuEngine做裁判，多线程同时下多局
+ * 开局按种子随机摆若干手，同一开局两方各执一次先手(成对)，抵消开局的先后手优势
+ * 按胜负和统计Elo与95%置信区间，用序贯概率比检验(SPRT，三项式近似)判定elo0与elo1哪个成立，判定后提前结束
+ * 山口规则的开局阶段由裁判代为决定：声明打点2个，不交换，打点取候选点中最先合法的两个，选择第一个
+ * 用法: Tournament -a 配置 -b 配置 [-rule r] [-games n] [-threads n] [-openings 手数] [-seed s]
+ *       [-elo0 e] [-elo1 e] [-alpha a] [-beta b]
+ * 配置: search:depth=4,time=1000 或 mcts:playouts=2000,time=1000，time为每手毫秒
+ */
+public class Tournament {
+
+    private static final int N = SimpleGomokuEngine.boardSize;
+    private static final int CELLS = N*N;
+    private static final int DOT_NUMBER = 2;
+
+    /**
+     * 参赛引擎，每个线程各有一个实例
+     */
+    public interface Player {
+        /**
+         * 新的一局开始，之后对同一个engine调用move()
+         */
+        void newGame(SimpleGomokuEngine engine);
+
+        /**
+         * 当前局面下一手的落点 y*boardSize+x，没有可走的点时返回-1
+         */
+        int move();
+    }
+
+    /**
+     * 按配置字符串创建参赛引擎
+     */
+    public static Player player(String spec){
+        int colon = spec.indexOf(':');
+        String kind = colon<0 ? spec : spec.substring(0, colon);
+        int depth = 0;
+        long time = 1000;
+        long playouts = 0;
+        if(colon>=0){
+            for(String kv : spec.substring(colon+1).split(",")){
+                String[] p = kv.split("=");
+                if(p.length!=2) throw new IllegalArgumentException("bad option "+kv);
+                switch (p[0]){
+                    case "depth": depth = Integer.parseInt(p[1]); break;
+                    case "time": time = Long.parseLong(p[1]); break;
+                    case "playouts": playouts = Long.parseLong(p[1]); break;
+                    default: throw new IllegalArgumentException("unknown option "+p[0]);
+                }
+            }
+        }
+        switch (kind){
+            case "search": return searchPlayer(depth, time);
+            case "mcts": return mctsPlayer(playouts, time);
+            default: throw new IllegalArgumentException("unknown engine "+kind);
+        }
+    }
+
+    private static Player searchPlayer(int depth, long timeMs){
+        TranspositionTable table = new TranspositionTable(1<<18);
+        return new Player() {
+            private GomokuSearch search;
+
+            @Override
+            public void newGame(SimpleGomokuEngine engine){
+                table.clear();
+                search = new GomokuSearch(engine, table);
+                if(depth>0) search.setMaxDepth(depth);
+            }
+
+            @Override
+            public int move(){
+                return search.search(timeMs);
+            }
+        };
+    }
+
+    private static Player mctsPlayer(long playouts, long timeMs){
+        MonteCarloSearch mcts = new MonteCarloSearch(1);
+        mcts.setPlayouts(playouts);
+        return new Player() {
+            private SimpleGomokuEngine engine;
+
+            @Override
+            public void newGame(SimpleGomokuEngine engine){
+                this.engine = engine;
+                mcts.clearTree();
+            }
+
+            @Override
+            public int move(){
+                return mcts.search(engine, timeMs);
+            }
+        };
+    }
+
+    /**
+     * 胜负和的统计与SPRT，a方视角
+     */
+    public static final class Stats {
+        private long wins;
+        private long draws;
+        private long losses;
+
+        synchronized void add(int score){
+            if(score>0) wins++;
+            else if(score<0) losses++;
+            else draws++;
+        }
+
+        public synchronized long games(){
+            return wins+draws+losses;
+        }
+
+        public synchronized long wins(){
+            return wins;
+        }
+
+        public synchronized long draws(){
+            return draws;
+        }
+
+        public synchronized long losses(){
+            return losses;
+        }
+
+        /**
+         * 平均得分(胜1 和0.5 负0)
+         */
+        public synchronized double score(){
+            long n = games();
+            return n==0 ? 0.5 : (wins+0.5*draws)/n;
+        }
+
+        /**
+         * 每局得分的方差
+         */
+        private double variance(){
+            long n = games();
+            double s = score();
+            return n==0 ? 0 : (wins*(1-s)*(1-s) + draws*(0.5-s)*(0.5-s) + losses*s*s)/n;
+        }
+
+        public synchronized double elo(){
+            return elo(score());
+        }
+
+        /**
+         * Elo的95%置信区间半宽，局数不足时为无穷大
+         */
+        public synchronized double eloError(){
+            long n = games();
+            double s = score();
+            if(n<2 || s<=0 || s>=1) return Double.POSITIVE_INFINITY;
+            double se = Math.sqrt(variance()/n);
+            return (elo(Math.min(s+1.96*se, 1-1e-9)) - elo(Math.max(s-1.96*se, 1e-9)))/2;
+        }
+
+        /**
+         * 对数似然比，elo1成立时增大
+         * 胜、和、负有一项为0时各加0.5局再估计得分与方差，否则全胜时方差为0，一边倒的对局无法判定
+         */
+        public synchronized double llr(double elo0, double elo1){
+            long n = games();
+            if(n==0) return 0;
+            double pad = wins==0 || draws==0 || losses==0 ? 0.5 : 0;
+            double w = wins+pad;
+            double d = draws+pad;
+            double l = losses+pad;
+            double total = w+d+l;
+            double s = (w+0.5*d)/total;
+            double var = (w*(1-s)*(1-s) + d*(0.5-s)*(0.5-s) + l*s*s)/total;
+            double s0 = expected(elo0);
+            double s1 = expected(elo1);
+            return (s1-s0)*(2*s-s0-s1)*n/(2*var);
+        }
+
+        @Override
+        public synchronized String toString(){
+            return String.format("games=%d +%d =%d -%d elo=%.1f +-%.1f", games(), wins, draws, losses, elo(), eloError());
+        }
+
+        private static double elo(double score){
+            if(score<=0) return Double.NEGATIVE_INFINITY;
+            if(score>=1) return Double.POSITIVE_INFINITY;
+            return -400*Math.log10(1/score-1);
+        }
+
+        private static double expected(double elo){
+            return 1/(1+Math.pow(10, -elo/400));
+        }
+    }
+
+    private final String a;
+    private final String b;
+    private final int rule;
+    private int openingPlies = 4;
+    private long seed = 1;
+    private double elo0 = 0;
+    private double elo1 = 10;
+    private double alpha = 0.05;
+    private double beta = 0.05;
+
+    private final Stats stats = new Stats();
+    /**
+     * SPRT结论：1接受elo1 -1接受elo0 0未定
+     */
+    private volatile int decision;
+
+    public Tournament(String a, String b, int rule){
+        if(rule<0 || rule>2) throw new IllegalArgumentException("rule "+rule);
+        //先解析一次，配置有误时立即报错
+        player(a);
+        player(b);
+        this.a = a;
+        this.b = b;
+        this.rule = rule;
+    }
+
+    /**
+     * 随机开局的手数
+     */
+    public void setOpeningPlies(int openingPlies){
+        this.openingPlies = Math.max(0, openingPlies);
+    }
+
+    public void setSeed(long seed){
+        this.seed = seed;
+    }
+
+    /**
+     * SPRT的两个假设(a相对b的Elo)与两类错误率
+     */
+    public void setSprt(double elo0, double elo1, double alpha, double beta){
+        if(elo1<=elo0) throw new IllegalArgumentException("elo1 must be greater than elo0");
+        this.elo0 = elo0;
+        this.elo1 = elo1;
+        this.alpha = alpha;
+        this.beta = beta;
+    }
+
+    public Stats stats(){
+        return stats;
+    }
+
+    public int decision(){
+        return decision;
+    }
+
+    /**
+     * 用threads个线程最多下games局(成对)，SPRT判定后提前结束
+     * @param progress 每完成一对调用一次，可以为null
+     */
+    public Stats run(long games, int threads, Runnable progress) throws InterruptedException {
+        double lower = Math.log(beta/(1-alpha));
+        double upper = Math.log((1-beta)/alpha);
+        AtomicLong next = new AtomicLong();
+        AtomicBoolean stop = new AtomicBoolean();
+        long pairs = (games+1)/2;
+        List<Thread> workers = new ArrayList<>();
+        List<RuntimeException> failures = new ArrayList<>();
+        for(int t = 0 ; t < threads ; t ++){
+            Thread worker = new Thread(() -> {
+                try {
+                    Player pa = player(a);
+                    Player pb = player(b);
+                    SimpleGomokuEngine engine = new SimpleGomokuEngine(rule);
+                    long[] initial = engine.snapshot();
+                    while (!stop.get()){
+                        long pair = next.getAndIncrement();
+                        if(pair>=pairs) break;
+                        int[] opening = opening(engine, initial, seed+pair);
+                        int s1 = play(engine, initial, opening, pa, pb);
+                        int s2 = -play(engine, initial, opening, pb, pa);
+                        stats.add(s1);
+                        stats.add(s2);
+                        double llr = stats.llr(elo0, elo1);
+                        if(llr>=upper || llr<=lower){
+                            decision = llr>=upper ? 1 : -1;
+                            stop.set(true);
+                        }
+                        if(progress!=null) progress.run();
+                    }
+                } catch (RuntimeException e) {
+                    synchronized (failures){
+                        failures.add(e);
+                    }
+                    stop.set(true);
+                }
+            }, "gomoku-tournament-"+t);
+            worker.start();
+            workers.add(worker);
+        }
+        for(Thread worker : workers) worker.join();
+        if(!failures.isEmpty()) throw failures.get(0);
+        return stats;
+    }
+
+    /**
+     * 一局，first执side0
+     * @return first视角 1胜 0和 -1负
+     */
+    private int play(SimpleGomokuEngine engine, long[] initial, int[] opening, Player first, Player second){
+        engine.restore(initial);
+        for(int pos : opening){
+            engine.move(pos%N, pos/N, engine.nextColor());
+        }
+        first.newGame(engine);
+        second.newGame(engine);
+        while (engine.status()!=SimpleGomokuEngine.END && engine.moveCount()<CELLS){
+            if(engine.status()!=SimpleGomokuEngine.MOVE){
+                referee(engine);
+                continue;
+            }
+            Player player = engine.turn()==0 ? first : second;
+            int move = player.move();
+            //没有可走的点记为和
+            if(move<0) break;
+            if(engine.move(move%N, move/N, engine.nextColor())<=0){
+                //走出非法的点判负
+                engine.resign(engine.turn());
+            }
+        }
+        if(engine.status()!=SimpleGomokuEngine.END || engine.result()==2) return 0;
+        return engine.result()==0 ? 1 : -1;
+    }
+
+    /**
+     * 山口规则开局阶段的固定决定
+     */
+    private void referee(SimpleGomokuEngine engine){
+        switch (engine.status()){
+            case SimpleGomokuEngine.ANN:
+                engine.ann(DOT_NUMBER);
+                break;
+            case SimpleGomokuEngine.SWAP:
+                engine.swap(false);
+                break;
+            case SimpleGomokuEngine.DOT:
+                if(!engine.dot(dots(engine))) engine.resign(engine.turn());
+                break;
+            case SimpleGomokuEngine.CHOICE:
+                engine.choice(0);
+                break;
+        }
+    }
+
+    /**
+     * 离中心最近、两两不对称的DOT_NUMBER个空点
+     */
+    private static int[] dots(SimpleGomokuEngine engine){
+        int[] dots = new int[DOT_NUMBER];
+        int c = N/2;
+        int count = 0;
+        for(int r = 0 ; r <= c && count<DOT_NUMBER ; r ++){
+            for(int y = c-r ; y <= c+r && count<DOT_NUMBER ; y ++){
+                for(int x = c-r ; x <= c+r && count<DOT_NUMBER ; x ++){
+                    if(Math.max(Math.abs(x-c), Math.abs(y-c))!=r) continue;
+                    if(engine.colorAt(x, y)!=SimpleGomokuEngine.EMPTY) continue;
+                    dots[count] = y*N+x;
+                    SimpleGomokuEngine copy = engine.copy();
+                    if(count+1<DOT_NUMBER || copy.dot(dots)) count++;
+                }
+            }
+        }
+        return dots;
+    }
+
+    /**
+     * 随机开局：落点在已有棋子一格内，不结束对局；山口规则下最多摆前三手
+     */
+    private int[] opening(SimpleGomokuEngine engine, long[] initial, long seed){
+        engine.restore(initial);
+        Random random = new Random(seed);
+        int plies = rule==2 ? Math.min(3, openingPlies) : openingPlies;
+        int[] moves = new int[plies];
+        int[] rows = new int[N];
+        for(int i = 0 ; i < plies ; i ++){
+            int pos = -1;
+            if(!engine.nearby(1, rows)){
+                pos = N/2*N+N/2;
+            }else{
+                for(int k = 0 ; k < 100 && pos<0 ; k ++){
+                    int p = random.nextInt(CELLS);
+                    if((rows[p/N]>>>(p%N) & 1)==0) continue;
+                    engine.move(p%N, p/N, engine.nextColor());
+                    boolean ok = engine.status()!=SimpleGomokuEngine.END;
+                    engine.undo();
+                    if(ok) pos = p;
+                }
+                if(pos<0) return Arrays.copyOf(moves, i);
+            }
+            engine.move(pos%N, pos/N, engine.nextColor());
+            moves[i] = pos;
+        }
+        return moves;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        String a = null;
+        String b = null;
+        int rule = 1;
+        long games = 1000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int openings = 4;
+        long seed = 1;
+        double elo0 = 0;
+        double elo1 = 10;
+        double alpha = 0.05;
+        double beta = 0.05;
+        for(int i = 0 ; i+1 < args.length ; i += 2){
+            String v = args[i+1];
+            switch (args[i]){
+                case "-a": a = v; break;
+                case "-b": b = v; break;
+                case "-rule": rule = Integer.parseInt(v); break;
+                case "-games": games = Long.parseLong(v); break;
+                case "-threads": threads = Integer.parseInt(v); break;
+                case "-openings": openings = Integer.parseInt(v); break;
+                case "-seed": seed = Long.parseLong(v); break;
+                case "-elo0": elo0 = Double.parseDouble(v); break;
+                case "-elo1": elo1 = Double.parseDouble(v); break;
+                case "-alpha": alpha = Double.parseDouble(v); break;
+                case "-beta": beta = Double.parseDouble(v); break;
+                default: throw new IllegalArgumentException("unknown option "+args[i]);
+            }
+        }
+        if(a==null || b==null){
+            System.err.println("usage: Tournament -a spec -b spec [-rule r] [-games n] [-threads n] [-openings n] [-seed s]"
+                    +" [-elo0 e] [-elo1 e] [-alpha a] [-beta b]");
+            return;
+        }
+        Tournament tournament = new Tournament(a, b, rule);
+        tournament.setOpeningPlies(openings);
+        tournament.setSeed(seed);
+        tournament.setSprt(elo0, elo1, alpha, beta);
+        Stats stats = tournament.stats();
+        double e0 = elo0;
+        double e1 = elo1;
+        long start = System.nanoTime();
+        tournament.run(games, threads, () -> {
+            if(stats.games()%20==0) System.err.printf("%s llr=%.2f%n", stats, stats.llr(e0, e1));
+        });
+        double seconds = (System.nanoTime()-start)/1e9;
+        String verdict = tournament.decision()>0 ? "H1 accepted (elo>="+elo1+")"
+                : tournament.decision()<0 ? "H0 accepted (elo<="+elo0+")" : "inconclusive";
+        System.out.printf("%s llr=%.2f [%.2f, %.2f] %s games/s=%.2f%n", stats, stats.llr(elo0, elo1),
+                Math.log(beta/(1-alpha)), Math.log((1-beta)/alpha), verdict, stats.games()/seconds);
+    }
+}
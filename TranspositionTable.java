@@ -0,0 +1,131 @@
+package com.xiaoming.gomoku.engine;
+
+import java.util.Arrays;
+
+/**
+ * 无锁置换表，以SimpleGomokuEngine.hash()为键
+ * 每个槽位占两个long: key^data 与 data，读取时校验异或结果，并发写入造成的撕裂条目会被当作未命中丢弃
+ * 每个桶两个槽位，深度优先替换，过期(上一轮搜索)的条目优先被替换
+ */
+public class TranspositionTable {
+
+    /**
+     * 边界类型，取值均不为0，保证有效条目的data不为0
+     */
+    public static final int LOWER = 1;
+    public static final int UPPER = 2;
+    public static final int EXACT = 3;
+
+    public static final int NO_MOVE = 0xFFFF;
+
+    /**
+     * 未命中
+     */
+    public static final long MISS = 0;
+
+    private static final int SLOTS = 2;
+
+    private final long[] table;
+    private final int bucketMask;
+    /**
+     * 由开始搜索的线程推进，搜索线程只读
+     */
+    private volatile int generation;
+
+    /**
+     * @param entries 条目数，向上取整为2的幂
+     */
+    public TranspositionTable(int entries){
+        if(entries<SLOTS || entries>1<<28) throw new IllegalArgumentException("entries "+entries);
+        int size = Integer.highestOneBit(entries-1)<<1;
+        this.table = new long[size*2];
+        this.bucketMask = size/SLOTS-1;
+    }
+
+    /**
+     * @return 命中时返回打包的data，用depth() bound() score() move()解包；未命中返回MISS
+     */
+    public long probe(long key){
+        int base = bucket(key);
+        for(int i = base ; i < base+SLOTS*2 ; i += 2){
+            long data = table[i+1];
+            if((table[i]^data)==key && data!=MISS){
+                return data;
+            }
+        }
+        return MISS;
+    }
+
+    public void store(long key, int depth, int bound, int score, int move){
+        int base = bucket(key);
+        int target = base;
+        int worst = Integer.MAX_VALUE;
+        int current = generation;
+        for(int i = base ; i < base+SLOTS*2 ; i += 2){
+            long data = table[i+1];
+            if((table[i]^data)==key){
+                //同一局面，更浅的结果只在边界更精确时覆盖
+                if(depth<depth(data) && bound!=EXACT) return;
+                target = i;
+                break;
+            }
+            //过期条目按深度-256处理，优先替换
+            int weight = data==MISS ? -1 : generation(data)==current ? depth(data) : depth(data)-256;
+            if(weight<worst){
+                worst = weight;
+                target = i;
+            }
+        }
+        long data = pack(depth, bound, score, move, current);
+        table[target] = key^data;
+        table[target+1] = data;
+    }
+
+    /**
+     * 开始新一轮搜索，旧条目降为可替换
+     */
+    public void newSearch(){
+        generation = (generation+1) & 0x3F;
+    }
+
+    public void clear(){
+        Arrays.fill(table, 0);
+        generation = 0;
+    }
+
+    public int capacity(){
+        return table.length/2;
+    }
+
+    public static int score(long data){
+        return (int) data;
+    }
+
+    public static int move(long data){
+        return (int) (data>>>32) & 0xFFFF;
+    }
+
+    public static int depth(long data){
+        return (int) (data>>>48) & 0xFF;
+    }
+
+    public static int bound(long data){
+        return (int) (data>>>56) & 0b11;
+    }
+
+    private static int generation(long data){
+        return (int) (data>>>58);
+    }
+
+    private static long pack(int depth, int bound, int score, int move, int generation){
+        return (score & 0xFFFFFFFFL)
+                | (long) (move & 0xFFFF)<<32
+                | (long) Math.min(Math.max(depth, 0), 0xFF)<<48
+                | (long) bound<<56
+                | (long) generation<<58;
+    }
+
+    private int bucket(long key){
+        return ((int) (key ^ key>>>32) & bucketMask) * SLOTS * 2;
+    }
+}
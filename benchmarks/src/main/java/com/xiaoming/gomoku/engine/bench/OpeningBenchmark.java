@@ -0,0 +1,57 @@
+package com.xiaoming.gomoku.engine.bench;
+
+import com.xiaoming.gomoku.engine.SimpleGomokuEngine;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 山口规则的打点(含打点合法性与对称检查checkDot)与选择打点
+ * 每次先restore()回到打点或选择阶段，restore单独测一项作为基线
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class OpeningBenchmark {
+
+    @Param({"2", "5", "10"})
+    public int dotNumber;
+
+    private SimpleGomokuEngine engine;
+    private long[] dotPhase;
+    private long[] choicePhase;
+    private int[] dots;
+    private int i;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        engine = Positions.dotPhase(dotNumber);
+        dots = Positions.dots(engine, dotNumber);
+        dotPhase = engine.snapshot();
+        engine.dot(dots.clone());
+        choicePhase = engine.snapshot();
+    }
+
+    @Benchmark
+    public long restore(){
+        engine.restore(dotPhase);
+        return engine.hash();
+    }
+
+    @Benchmark
+    public boolean dot(){
+        engine.restore(dotPhase);
+        return engine.dot(dots);
+    }
+
+    @Benchmark
+    public boolean choice(){
+        engine.restore(choicePhase);
+        int idx = i;
+        if(++i==dotNumber) i = 0;
+        return engine.choice(idx);
+    }
+}
@@ -0,0 +1,59 @@
+package com.xiaoming.gomoku.engine.bench;
+
+import com.xiaoming.gomoku.engine.SimpleGomokuEngine;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 落子(含胜负与禁手判断)后悔棋，依次轮换局面中的空点
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PlayBenchmark {
+
+    private static final int N = Positions.N;
+
+    @Param({"midgame", "lines", "traps"})
+    public String position;
+
+    private SimpleGomokuEngine engine;
+    private int[] empties;
+    private int i;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        engine = Positions.of(position);
+        if(engine.status()!=SimpleGomokuEngine.MOVE) throw new IllegalStateException(position+" is not in the move phase");
+        int[] buf = new int[N*N];
+        int e = 0;
+        for(int p = 0 ; p < N*N ; p ++){
+            if(engine.colorAt(p%N, p/N)==SimpleGomokuEngine.EMPTY) buf[e++] = p;
+        }
+        empties = java.util.Arrays.copyOf(buf, e);
+    }
+
+    @Benchmark
+    public boolean playUndo(){
+        int p = empties[i];
+        if(++i==empties.length) i = 0;
+        SimpleGomokuEngine.MoveResult r = engine.play(p%N, p/N, engine.nextColor());
+        if(r==null || !r.success) return false;
+        engine.undo();
+        return r.end;
+    }
+
+    @Benchmark
+    public int moveUndo(){
+        int p = empties[i];
+        if(++i==empties.length) i = 0;
+        int code = engine.move(p%N, p/N, engine.nextColor());
+        //只有落子成功时才悔棋，否则会撤掉局面里原有的棋子
+        if(code>0) engine.undo();
+        return code;
+    }
+}
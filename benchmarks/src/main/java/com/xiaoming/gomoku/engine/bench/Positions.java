@@ -0,0 +1,153 @@
+package com.xiaoming.gomoku.engine.bench;
+
+import com.xiaoming.gomoku.engine.SimpleGomokuEngine;
+
+import java.util.Random;
+
+/**
+ * 基准测试用的局面，固定种子，每次运行相同
+ * midgame: 随机对局下到约60手的密集中局
+ * lines: 每行交替排列长连与断开的同色子，棋型判断要走完长线
+ * traps: 禁手规则下黑棋禁手点(三三、四四、长连)多的局面
+ */
+public final class Positions {
+
+    public static final int N = SimpleGomokuEngine.boardSize;
+
+    private Positions(){
+    }
+
+    public static SimpleGomokuEngine of(String kind){
+        switch (kind){
+            case "midgame": return midgame(1, 60);
+            case "lines": return lines();
+            case "traps": return traps();
+            default: throw new IllegalArgumentException("position "+kind);
+        }
+    }
+
+    /**
+     * 随机下moves手，落点在已有棋子一格内，跳过会结束对局的点
+     */
+    public static SimpleGomokuEngine midgame(long seed, int moves){
+        Random random = new Random(seed);
+        SimpleGomokuEngine engine = new SimpleGomokuEngine(1);
+        engine.move(N/2, N/2, engine.nextColor());
+        int[] rows = new int[N];
+        while (engine.moveCount()<moves){
+            engine.nearby(1, rows);
+            int pos = pick(rows, random);
+            if(pos<0) break;
+            engine.move(pos%N, pos/N, engine.nextColor());
+            if(engine.status()!=SimpleGomokuEngine.MOVE) engine.undo();
+        }
+        return engine;
+    }
+
+    public static SimpleGomokuEngine lines(){
+        SimpleGomokuEngine engine = new SimpleGomokuEngine(0);
+        //黑白各按行交替："XXXX_X_XXXX..."的断续长线，白棋行反向排列；每段最多4子，行间隔一行，整盘不成五
+        String pattern = "XXXX_X_XXXX_X_X";
+        for(int y = 0 ; y < N ; y += 2){
+            boolean black = y%4==0;
+            for(int x = 0 ; x < N ; x ++){
+                if(pattern.charAt(black ? x : N-1-x)!='X') continue;
+                place(engine, x, y, black ? SimpleGomokuEngine.BLACK : SimpleGomokuEngine.WHITE);
+            }
+        }
+        return engine;
+    }
+
+    /**
+     * 在若干随机中局里取禁手点最多的
+     */
+    public static SimpleGomokuEngine traps(){
+        SimpleGomokuEngine best = null;
+        int most = -1;
+        int[] rows = new int[N];
+        for(long seed = 1 ; seed <= 200 ; seed ++){
+            SimpleGomokuEngine engine = midgame(seed, 50);
+            int count = engine.forbiddenPoints(rows);
+            if(count>most){
+                most = count;
+                best = engine;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * 山口规则下黑白黑三手后声明打点数量，返回打点阶段的局面
+     */
+    public static SimpleGomokuEngine dotPhase(int dotNumber){
+        SimpleGomokuEngine engine = new SimpleGomokuEngine(2);
+        engine.move(7, 7, SimpleGomokuEngine.BLACK);
+        engine.move(8, 7, SimpleGomokuEngine.WHITE);
+        engine.move(8, 8, SimpleGomokuEngine.BLACK);
+        engine.ann(dotNumber);
+        engine.swap(false);
+        engine.move(6, 8, SimpleGomokuEngine.WHITE);
+        return engine;
+    }
+
+    /**
+     * 打点阶段合法的一组打点
+     */
+    public static int[] dots(SimpleGomokuEngine dotPhase, int dotNumber){
+        Random random = new Random(dotNumber);
+        for(int k = 0 ; k < 10000 ; k ++){
+            int[] dots = new int[dotNumber];
+            for(int i = 0 ; i < dotNumber ; i ++) dots[i] = (4+random.nextInt(7))*N + 4+random.nextInt(7);
+            SimpleGomokuEngine copy = dotPhase.copy();
+            if(copy.dot(dots)) return dots;
+        }
+        throw new IllegalStateException("no legal dots");
+    }
+
+    /**
+     * 完整对局的棋谱，随机下到分出胜负或满250手
+     */
+    public static byte[][] games(int count, int rule){
+        Random random = new Random(rule);
+        byte[][] records = new byte[count][];
+        int[] rows = new int[N];
+        for(int g = 0 ; g < count ; g ++){
+            SimpleGomokuEngine engine = new SimpleGomokuEngine(rule);
+            engine.move(N/2, N/2, engine.nextColor());
+            while (engine.status()==SimpleGomokuEngine.MOVE && engine.moveCount()<250){
+                engine.nearby(1, rows);
+                int pos = pick(rows, random);
+                if(pos<0) break;
+                engine.move(pos%N, pos/N, engine.nextColor());
+            }
+            records[g] = engine.record();
+        }
+        return records;
+    }
+
+    private static int pick(int[] rows, Random random){
+        int count = 0;
+        for(int row : rows) count += Integer.bitCount(row);
+        if(count==0) return -1;
+        int k = random.nextInt(count);
+        for(int y = 0 ; y < N ; y ++){
+            int row = rows[y];
+            while (row!=0){
+                int x = Integer.numberOfTrailingZeros(row);
+                row &= row-1;
+                if(k--==0) return y*N+x;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 不计轮次地摆子：轮到的颜色不符时先让对方虚手，摆子失败或对局结束时抛出异常
+     */
+    private static void place(SimpleGomokuEngine engine, int x, int y, int color){
+        if(engine.nextColor()!=color) engine.pass();
+        if(engine.move(x, y, color)<=0 || engine.status()!=SimpleGomokuEngine.MOVE){
+            throw new IllegalStateException("cannot place ("+x+","+y+")");
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.xiaoming.gomoku.engine.bench;
+
+import com.xiaoming.gomoku.engine.SimpleGomokuEngine;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 整局重放与引擎、棋盘的创建，-prof gc可以看到每局的分配量
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReplayBenchmark {
+
+    @Param({"0", "1"})
+    public int rule;
+
+    private ByteBuffer[] games;
+    private final SimpleGomokuEngine engine = new SimpleGomokuEngine(0);
+    private int i;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        byte[][] records = Positions.games(256, rule);
+        games = new ByteBuffer[records.length];
+        for(int g = 0 ; g < records.length ; g ++) games[g] = ByteBuffer.wrap(records[g]);
+    }
+
+    private ByteBuffer next(){
+        ByteBuffer game = games[i];
+        if(++i==games.length) i = 0;
+        return game;
+    }
+
+    /**
+     * 复用同一个引擎重放
+     */
+    @Benchmark
+    public int load(){
+        return engine.load(next()) + engine.status();
+    }
+
+    /**
+     * 每局新建引擎重放
+     */
+    @Benchmark
+    public SimpleGomokuEngine replay(){
+        return SimpleGomokuEngine.replay(next());
+    }
+
+    @Benchmark
+    public SimpleGomokuEngine.Board newBoard(){
+        return new SimpleGomokuEngine.Board(15);
+    }
+
+    @Benchmark
+    public SimpleGomokuEngine newEngine(){
+        return new SimpleGomokuEngine(rule);
+    }
+}
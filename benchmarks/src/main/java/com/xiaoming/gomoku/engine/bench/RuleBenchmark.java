@@ -0,0 +1,82 @@
+package com.xiaoming.gomoku.engine.bench;
+
+import com.xiaoming.gomoku.engine.SimpleGomokuEngine;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 禁手判断与棋型判断，每次调用判断一个点，依次轮换局面中的点
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RuleBenchmark {
+
+    private static final int N = Positions.N;
+
+    @Param({"midgame", "lines", "traps"})
+    public String position;
+
+    private SimpleGomokuEngine engine;
+    /**
+     * 空点，checkRule的输入
+     */
+    private int[] empties;
+    /**
+     * 棋子与方向：pos*4+d，getShape的输入
+     */
+    private int[] stones;
+    /**
+     * forbiddenPoints的输出，预先分配，测量时不产生分配
+     */
+    private int[] rows;
+    private int i;
+    private int j;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        engine = Positions.of(position);
+        if(engine.status()!=SimpleGomokuEngine.MOVE) throw new IllegalStateException(position+" is not in the move phase");
+        int e = 0;
+        int s = 0;
+        int[] emptyBuf = new int[N*N];
+        int[] stoneBuf = new int[N*N*4];
+        for(int p = 0 ; p < N*N ; p ++){
+            if(engine.colorAt(p%N, p/N)==SimpleGomokuEngine.EMPTY){
+                emptyBuf[e++] = p;
+            }else{
+                for(int d = 0 ; d < 4 ; d ++) stoneBuf[s++] = p*4+d;
+            }
+        }
+        empties = java.util.Arrays.copyOf(emptyBuf, e);
+        stones = java.util.Arrays.copyOf(stoneBuf, s);
+        rows = new int[N];
+    }
+
+    @Benchmark
+    public int checkRule(){
+        int p = empties[i];
+        if(++i==empties.length) i = 0;
+        return engine.checkRule(p%N, p/N, SimpleGomokuEngine.BLACK);
+    }
+
+    @Benchmark
+    public int getShape(){
+        int v = stones[j];
+        if(++j==stones.length) j = 0;
+        int p = v>>>2;
+        return engine.getShape(p%N, p/N, v&3);
+    }
+
+    /**
+     * 全盘黑棋禁手点，增量维护的位图刷新
+     */
+    @Benchmark
+    public int forbiddenPoints(){
+        return engine.forbiddenPoints(rows);
+    }
+}
@@ -0,0 +1,77 @@
+package com.xiaoming.gomoku.engine;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * 落子、悔棋、禁手判断在预热后不分配对象，按本线程分配的字节数检查
+ */
+class AllocationTest {
+
+    private static final int ROUNDS = 2000;
+
+    @Test
+    void moveUndoAndCheckRuleDoNotAllocate(){
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(mx.isThreadAllocatedMemorySupported() && mx.isThreadAllocatedMemoryEnabled());
+        SimpleGomokuEngine engine = position();
+        int[] points = empties(engine);
+        int[] rows = new int[SimpleGomokuEngine.boardSize];
+        long sink = 0;
+        //预热：JIT编译，history数组增长到够用
+        for(int r = 0 ; r < ROUNDS ; r ++) sink += round(engine, points, rows);
+        long before = mx.getCurrentThreadAllocatedBytes();
+        for(int r = 0 ; r < ROUNDS ; r ++) sink += round(engine, points, rows);
+        long allocated = mx.getCurrentThreadAllocatedBytes()-before;
+        assertEquals(0, allocated, "allocated bytes (sink "+sink+")");
+    }
+
+    /**
+     * 每个空点判断一次禁手、落子、取禁手点、悔棋，play()的结果对象由引擎复用
+     */
+    private static long round(SimpleGomokuEngine engine, int[] points, int[] rows){
+        int n = SimpleGomokuEngine.boardSize;
+        long sink = 0;
+        for(int pos : points){
+            int x = pos%n;
+            int y = pos/n;
+            sink += engine.checkRule(x, y, engine.nextColor());
+            SimpleGomokuEngine.MoveResult result = engine.play(x, y, engine.nextColor());
+            sink += result.rule;
+            sink += engine.forbiddenPoints(rows);
+            engine.undo();
+        }
+        return sink;
+    }
+
+    /**
+     * 禁手规则下轮到黑棋，有成五、三三、四四、长连点各一个，落子与禁手判断会走到各个分支
+     */
+    private static SimpleGomokuEngine position(){
+        int[][] black = {{10, 0}, {11, 0}, {12, 0}, {13, 0}, {3, 5}, {4, 5}, {5, 3}, {5, 4}, {8, 10}, {9, 10},
+                {10, 10}, {11, 7}, {11, 8}, {11, 9}, {0, 12}, {1, 12}, {2, 12}, {3, 12}, {5, 12}};
+        int[][] white = {{0, 8}, {2, 8}, {4, 8}, {6, 8}, {8, 8}, {13, 8}, {1, 14}, {3, 14}, {8, 3}, {10, 3},
+                {12, 3}, {14, 3}, {8, 6}, {10, 6}, {13, 6}, {14, 5}, {14, 10}, {14, 12}, {13, 14}};
+        SimpleGomokuEngine engine = new SimpleGomokuEngine(1);
+        for(int i = 0 ; i < black.length ; i ++){
+            assertEquals(SimpleGomokuEngine.MOVE_SUCCESS, engine.move(black[i][0], black[i][1], SimpleGomokuEngine.BLACK));
+            assertEquals(SimpleGomokuEngine.MOVE_SUCCESS, engine.move(white[i][0], white[i][1], SimpleGomokuEngine.WHITE));
+        }
+        return engine;
+    }
+
+    private static int[] empties(SimpleGomokuEngine engine){
+        int n = SimpleGomokuEngine.boardSize;
+        int count = 0;
+        int[] points = new int[n*n];
+        for(int pos = 0 ; pos < n*n ; pos ++){
+            if(engine.colorAt(pos%n, pos/n)==SimpleGomokuEngine.EMPTY) points[count++] = pos;
+        }
+        return Arrays.copyOf(points, count);
+    }
+}
@@ -0,0 +1,91 @@
+package com.xiaoming.gomoku.engine;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 固定局面的perft计数，规则判断或状态机改写后数字必须不变
+ */
+class PerftTest {
+
+    private final Perft perft = new Perft(2);
+
+    @Test
+    void yamaguchiOpening() throws InterruptedException {
+        SimpleGomokuEngine engine = new SimpleGomokuEngine(2);
+        assertEquals(225, perft.run(engine, 1, 1).nodes());
+        assertEquals(50400, perft.run(engine, 2, 1).nodes());
+        assertEquals(11239200, perft.run(engine, 3, 2).nodes());
+    }
+
+    @Test
+    void renjuOpeningWithPass() throws InterruptedException {
+        SimpleGomokuEngine engine = new SimpleGomokuEngine(1);
+        Perft.Result result = perft.run(engine, 3, 2);
+        assertEquals(226, perft.run(engine, 1, 1).nodes());
+        assertEquals(50851, perft.run(engine, 2, 1).nodes());
+        assertEquals(11391076, result.nodes());
+        assertEquals(50851, result.count(Perft.PASS));
+    }
+
+    @Test
+    void dotAndChoice() throws InterruptedException {
+        SimpleGomokuEngine engine = new SimpleGomokuEngine(2);
+        engine.move(7, 7, SimpleGomokuEngine.BLACK);
+        engine.move(8, 7, SimpleGomokuEngine.WHITE);
+        engine.move(8, 8, SimpleGomokuEngine.BLACK);
+        engine.ann(2);
+        engine.swap(false);
+        engine.move(6, 8, SimpleGomokuEngine.WHITE);
+        assertEquals(24310, perft.run(engine, 1, 1).count(Perft.DOT));
+        assertEquals(48620, perft.run(engine, 2, 1).count(Perft.CHOICE));
+    }
+
+    @Test
+    void forbiddenPoints() throws InterruptedException {
+        SimpleGomokuEngine engine = traps();
+        Perft.Result one = perft.run(engine, 1, 1);
+        assertEquals(186, one.nodes());
+        assertEquals(1, one.count(Perft.FIVE));
+        assertEquals(1, one.count(Perft.FORBIDDEN_33));
+        assertEquals(1, one.count(Perft.FORBIDDEN_44));
+        assertEquals(2, one.count(Perft.CONNECT_LONG));
+        assertEquals(1, one.count(Perft.PASS));
+
+        Perft.Result three = perft.run(engine, 3, 2);
+        assertEquals(6161791, three.nodes());
+        assertEquals(5961015, three.count(Perft.MOVE));
+        assertEquals(35142, three.count(Perft.FIVE));
+        assertEquals(33302, three.count(Perft.FORBIDDEN_33));
+        assertEquals(31868, three.count(Perft.FORBIDDEN_44));
+        assertEquals(66978, three.count(Perft.CONNECT_LONG));
+        assertEquals(33486, three.count(Perft.PASS));
+    }
+
+    @Test
+    void threadsDoNotChangeCounts() throws InterruptedException {
+        SimpleGomokuEngine engine = traps();
+        Perft.Result single = perft.run(engine, 2, 1);
+        Perft.Result parallel = perft.run(engine, 2, 4);
+        for(int k = 0 ; k < Perft.KINDS ; k ++){
+            assertEquals(single.count(k), parallel.count(k));
+        }
+    }
+
+    /**
+     * 禁手规则下轮到黑棋，有成五、三三、四四、长连点各至少一个
+     */
+    static SimpleGomokuEngine traps(){
+        int[][] black = {{0, 0}, {1, 0}, {2, 0}, {3, 0}, {0, 14}, {1, 14}, {2, 14}, {4, 14}, {5, 14}, {14, 12},
+                {5, 7}, {6, 7}, {7, 5}, {7, 6}, {8, 12}, {9, 12}, {10, 12}, {11, 9}, {11, 10}, {11, 11}};
+        int[][] white = {{0, 2}, {2, 2}, {4, 2}, {6, 2}, {8, 2}, {10, 2}, {12, 2}, {14, 2}, {0, 4}, {2, 4},
+                {4, 4}, {10, 4}, {12, 4}, {14, 4}, {12, 6}, {14, 6}, {0, 8}, {2, 8}, {14, 8}, {0, 10}};
+        SimpleGomokuEngine engine = new SimpleGomokuEngine(1);
+        for(int i = 0 ; i < black.length ; i ++){
+            assertEquals(SimpleGomokuEngine.MOVE_SUCCESS, engine.move(black[i][0], black[i][1], SimpleGomokuEngine.BLACK));
+            assertEquals(SimpleGomokuEngine.MOVE_SUCCESS, engine.move(white[i][0], white[i][1], SimpleGomokuEngine.WHITE));
+        }
+        return engine;
+    }
+}